@@ -0,0 +1,53 @@
+import bench.Workload;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+
+// A track's worth of 44.1 kHz 16-bit stereo converted to the 48 kHz 24-bit output format, then run through
+// the gain stage, as the decoder and audio threads do with a fixed output rate.
+class ConvertWorkload implements Workload {
+    private static final int CHUNK_FRAMES = 1024;
+    private static final AudioFormat SOURCE = new AudioFormat(44100, 16, 2, true, false);
+    private static final AudioFormat OUTPUT = new AudioFormat(48000, 24, 2, true, false);
+
+    private byte[] pcm;
+    private final GainStage gainStage = new GainStage();
+    private byte[] buffer;
+
+    // tracks is the length of the track in seconds.
+    @Override
+    public void setUp(Path library, int tracks) {
+        String kernels = System.getProperty("wavplayer.kernels", "vector");
+        if (!SampleKernels.get().name().startsWith(kernels)) {
+            throw new IllegalStateException("Asked for " + kernels + " kernels but got " + SampleKernels.get().name());
+        }
+        int frames = (int) SOURCE.getFrameRate() * tracks;
+        pcm = new byte[frames * SOURCE.getFrameSize()];
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (Math.sin(i * 0.0625) * 20000);
+            for (int c = 0; c < 2; c++) {
+                pcm[i * 4 + c * 2] = (byte) sample;
+                pcm[i * 4 + c * 2 + 1] = (byte) (sample >> 8);
+            }
+        }
+        gainStage.configure(OUTPUT, CHUNK_FRAMES);
+        gainStage.setGain(-3.0, true);
+        buffer = new byte[OUTPUT.getFrameSize() * CHUNK_FRAMES];
+    }
+
+    @Override
+    public Object run() throws Exception {
+        long total = 0;
+        AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), SOURCE, pcm.length / SOURCE.getFrameSize());
+        try (AudioInputStream converted = FormatConverter.convert(in, OUTPUT)) {
+            int bytesRead;
+            while ((bytesRead = converted.read(buffer, 0, buffer.length)) != -1) {
+                gainStage.process(buffer, 0, bytesRead);
+                total += bytesRead;
+            }
+        }
+        return total;
+    }
+}
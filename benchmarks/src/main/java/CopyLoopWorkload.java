@@ -0,0 +1,60 @@
+import bench.Library;
+import bench.Workload;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Mirrors PlaybackEngine's loop: poll the decoded ring, run the gain stage, hand the bytes on.
+class CopyLoopWorkload implements Workload {
+    private static final int CHUNK_FRAMES = 1024;
+
+    private File[] files;
+    private final GainStage gainStage = new GainStage();
+    private byte[] buffer;
+    private ExecutorService decoder;
+
+    @Override
+    public void setUp(Path library, int tracks) {
+        files = new File[tracks];
+        for (int i = 0; i < tracks; i++) {
+            files[i] = library.resolve(Library.relativePath(i)).toFile();
+        }
+        AudioFormat format = new AudioFormat(Library.SAMPLE_RATE, 16, 2, true, false);
+        gainStage.configure(format, CHUNK_FRAMES);
+        gainStage.setGain(-3.0, true);
+        buffer = new byte[format.getFrameSize() * CHUNK_FRAMES];
+        decoder = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Object run() throws Exception {
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            try (TrackStream track = TrackStream.open(i, files[i], decoder)) {
+                int frameSize = track.getFormat().getFrameSize();
+                int bytesRead;
+                while ((bytesRead = track.poll(buffer, 0, frameSize * CHUNK_FRAMES)) != -1) {
+                    if (bytesRead == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    gainStage.process(buffer, 0, bytesRead);
+                    total += bytesRead;
+                }
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void tearDown() {
+        decoder.shutdownNow();
+    }
+}
@@ -0,0 +1,40 @@
+import bench.Library;
+import bench.Workload;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class JsonExportWorkload implements Workload {
+    private LibraryIndex index;
+    private File[] files;
+    private double[] gains;
+    private Path output;
+
+    @Override
+    public void setUp(Path library, int tracks) throws Exception {
+        index = LibraryIndex.open(library.toFile());
+        files = new File[tracks];
+        gains = new double[tracks];
+        for (int i = 0; i < tracks; i++) {
+            files[i] = library.resolve(Library.relativePath(i)).toFile();
+            gains[i] = (i % 200 - 100) / 10.0;
+        }
+        output = Files.createTempFile("export", ".json");
+    }
+
+    @Override
+    public Object run() throws Exception {
+        try (SessionJsonWriter writer = new SessionJsonWriter(output.toFile(), index.root.toString())) {
+            for (int i = 0; i < files.length; i++) {
+                writer.add(files[i].getName(), index.key(files[i]), gains[i]);
+            }
+        }
+        return output;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(output);
+    }
+}
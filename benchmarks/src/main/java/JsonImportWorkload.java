@@ -0,0 +1,50 @@
+import bench.Library;
+import bench.Workload;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads an export and matches every entry to its row the way WavPlayer.applyImportedGains does.
+class JsonImportWorkload implements Workload {
+    private TrackTableModel model;
+    private Path root;
+    private Path input;
+
+    @Override
+    public void setUp(Path library, int tracks) throws Exception {
+        root = library;
+        List<File> files = new ArrayList<>(tracks);
+        for (int i = 0; i < tracks; i++) {
+            files.add(library.resolve(Library.relativePath(i)).toFile());
+        }
+        model = new TrackTableModel();
+        model.append(files, new double[tracks], new boolean[tracks]);
+        input = Files.createTempFile("import", ".json");
+        try (SessionJsonWriter writer = new SessionJsonWriter(input.toFile(), library.toString())) {
+            for (int i = tracks - 1; i >= 0; i--) {
+                writer.add(files.get(i).getName(), Library.relativePath(i), i % 50 / 10.0);
+            }
+        }
+    }
+
+    @Override
+    public Object run() throws Exception {
+        int[] matched = {0};
+        SessionJsonReader.readEntries(input.toFile(), (name, folder, path, gain) -> {
+            int row = model.rowOf(root.resolve(path).toFile());
+            if (row >= 0) {
+                model.setGain(row, gain, true);
+                matched[0]++;
+            }
+        });
+        return matched[0];
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(input);
+    }
+}
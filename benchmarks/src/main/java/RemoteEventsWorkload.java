@@ -0,0 +1,88 @@
+import bench.Workload;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Drives the remote control on an ephemeral port: one client reads the event stream while the others
+// connect and never read, like phones gone to sleep. Each run publishes a status and waits for the reading
+// client to see it, and fails if it doesn't arrive, so a stalled client holding up the rest shows up as an
+// error rather than a slow score. tracks is the number of stalled clients.
+class RemoteEventsWorkload implements Workload {
+    private static final String TOKEN = "bench";
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    // Long enough that the stalled clients' socket buffers fill within a few runs
+    private final String name = "x".repeat(4000);
+    private RemoteControl remote;
+    private final List<Socket> stalled = new ArrayList<>();
+    private Socket client;
+    private BufferedReader events;
+    private long position = 0;
+
+    @Override
+    public void setUp(Path library, int tracks) throws Exception {
+        remote = new RemoteControl(0, TOKEN, new RemoteControl.Controls() {
+            @Override
+            public void togglePause() {
+            }
+
+            @Override
+            public void next() {
+            }
+
+            @Override
+            public void previous() {
+            }
+
+            @Override
+            public void changeGain(double delta) {
+            }
+        });
+        remote.start();
+        for (int i = 0; i < tracks; i++) {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(1024);
+            stalled.add(openEvents(socket));
+        }
+        client = openEvents(new Socket());
+        client.setSoTimeout(TIMEOUT_MILLIS);
+        events = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object run() throws Exception {
+        position++;
+        remote.update(RemoteControl.status(true, 0, name, 0, false, position, Long.MAX_VALUE));
+        // Events are coalesced, so this one may be the first the client sees since the last run
+        String expected = "\"position\": " + position + ",";
+        String line;
+        while ((line = events.readLine()) != null) {
+            if (line.contains(expected)) {
+                return line;
+            }
+        }
+        throw new IllegalStateException("event stream ended");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        remote.stop();
+        client.close();
+        for (Socket socket : stalled) {
+            socket.close();
+        }
+    }
+
+    private Socket openEvents(Socket socket) throws IOException {
+        socket.connect(new InetSocketAddress("127.0.0.1", remote.getPort()));
+        socket.getOutputStream().write(("GET /api/events?token=" + TOKEN + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        return socket;
+    }
+}
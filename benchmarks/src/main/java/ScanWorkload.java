@@ -0,0 +1,24 @@
+import bench.Workload;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ScanWorkload implements Workload {
+    private Path library;
+
+    @Override
+    public void setUp(Path library, int tracks) {
+        this.library = library;
+    }
+
+    @Override
+    public Object run() {
+        AtomicInteger found = new AtomicInteger();
+        FolderScanner scanner = new FolderScanner(LibraryIndex.open(library.toFile()), batch -> found.addAndGet(batch.size()));
+        scanner.start();
+        while (!scanner.isDone()) {
+            Thread.yield();
+        }
+        return found.get();
+    }
+}
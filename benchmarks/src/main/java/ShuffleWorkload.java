@@ -0,0 +1,34 @@
+import bench.Library;
+import bench.Workload;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+class ShuffleWorkload implements Workload {
+    private TrackTableModel model;
+    private ShuffleEngine shuffler;
+
+    @Override
+    public void setUp(Path library, int tracks) {
+        List<File> files = new ArrayList<>(tracks);
+        for (int i = 0; i < tracks; i++) {
+            files.add(library.resolve(Library.relativePath(i)).toFile());
+        }
+        model = new TrackTableModel();
+        model.append(files, new double[tracks], new boolean[tracks]);
+        shuffler = new ShuffleEngine(model, new Random(42));
+    }
+
+    @Override
+    public Object run() {
+        shuffler.newPass();
+        int rows = model.getRowCount();
+        for (int row = 0; row < rows; row++) {
+            shuffler.playFrom(row);
+        }
+        return model.idAt(rows - 1);
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Gain export and import of a whole library, including matching imported entries back to table rows.
+// Only file names are needed, so no WAVs are generated.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private Workload export;
+    private Workload importer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Path library = Path.of("/library");
+        export = Workload.load("JsonExportWorkload", library, tracks);
+        importer = Workload.load("JsonImportWorkload", library, tracks);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        export.tearDown();
+        importer.tearDown();
+    }
+
+    @Benchmark
+    public Object exportJson() throws Exception {
+        return export.run();
+    }
+
+    @Benchmark
+    public Object importJson() throws Exception {
+        return importer.run();
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Synthetic libraries of short 16-bit stereo WAVs, 100 per folder like a typical album-per-folder catalog.
+// Libraries are generated once under bench.library (default: the temp dir) and reused by later runs.
+public final class Library {
+    public static final int FILES_PER_FOLDER = 100;
+    public static final int FRAMES = 512;
+    public static final float SAMPLE_RATE = 44100;
+
+    private Library() {
+    }
+
+    public static Path get(int tracks) throws IOException {
+        Path base = Path.of(System.getProperty("bench.library", Path.of(System.getProperty("java.io.tmpdir"), "wavplayer-bench").toString()));
+        Path root = base.resolve(Integer.toString(tracks));
+        Path complete = root.resolve(".complete");
+        if (Files.exists(complete)) {
+            return root;
+        }
+        Random random = new Random(tracks);
+        for (int i = 0; i < tracks; i++) {
+            Path file = root.resolve(relativePath(i));
+            Files.createDirectories(file.getParent());
+            write(file, random.nextDouble());
+        }
+        Files.createFile(complete);
+        return root;
+    }
+
+    public static String relativePath(int track) {
+        return String.format("folder%04d/track%06d.wav", track / FILES_PER_FOLDER, track);
+    }
+
+    private static void write(Path file, double amplitude) throws IOException {
+        int dataSize = FRAMES * 4;
+        ByteBuffer wav = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put("RIFF".getBytes()).putInt(36 + dataSize).put("WAVE".getBytes());
+        wav.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 2)
+                .putInt((int) SAMPLE_RATE).putInt((int) SAMPLE_RATE * 4).putShort((short) 4).putShort((short) 16);
+        wav.put("data".getBytes()).putInt(dataSize);
+        for (int i = 0; i < FRAMES; i++) {
+            short sample = (short) (amplitude * 32767 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            wav.putShort(sample).putShort(sample);
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(wav.array());
+        }
+    }
+}
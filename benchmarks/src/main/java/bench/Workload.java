@@ -0,0 +1,24 @@
+package bench;
+
+import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+
+// JMH refuses benchmark classes in the default package, and a named package can't see the player's
+// classes. So each measured path lives in a default-package workload that the benchmark loads once by
+// name and then calls through this interface; the call is monomorphic and costs nothing after JIT.
+public interface Workload {
+    void setUp(Path library, int tracks) throws Exception;
+
+    Object run() throws Exception;
+
+    default void tearDown() throws Exception {
+    }
+
+    static Workload load(String className, Path library, int tracks) throws Exception {
+        Constructor<?> constructor = Class.forName(className).getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Workload workload = (Workload) constructor.newInstance();
+        workload.setUp(library, tracks);
+        return workload;
+    }
+}
@@ -0,0 +1,109 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SampleKernels on the Vector API. Loaded reflectively by SampleKernels.get(), see there for why.
+class VectorKernels extends SampleKernels {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    // Same width as FLOATS, so int/float conversions keep the lane count
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    String name() {
+        return "vector " + FLOATS.length() + "x32";
+    }
+
+    @Override
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            sum = FloatVector.fromArray(FLOATS, a, aOffset + i).fma(FloatVector.fromArray(FLOATS, b, bOffset + i), sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[aOffset + i] * b[bOffset + i];
+        }
+        return result;
+    }
+
+    @Override
+    void scale(float[] x, int offset, int length, float factor) {
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            FloatVector.fromArray(FLOATS, x, offset + i).mul(factor).intoArray(x, offset + i);
+        }
+        for (; i < length; i++) {
+            x[offset + i] *= factor;
+        }
+    }
+
+    // Lanes are consecutive outputs, so each tap is one broadcast multiply-add over a shifted load.
+    @Override
+    float firPeak(float[] x, int frames, float[] taps) {
+        FloatVector peak = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(frames); i < bound; i += FLOATS.length()) {
+            FloatVector sum = FloatVector.zero(FLOATS);
+            for (int t = 0; t < taps.length; t++) {
+                sum = FloatVector.fromArray(FLOATS, x, i + t).fma(FloatVector.broadcast(FLOATS, taps[t]), sum);
+            }
+            peak = peak.max(sum.abs());
+        }
+        float result = peak.reduceLanes(VectorOperators.MAX);
+        for (; i < frames; i++) {
+            float sum = 0;
+            for (int t = 0; t < taps.length; t++) {
+                sum += x[i + t] * taps[t];
+            }
+            result = Math.max(result, Math.abs(sum));
+        }
+        return result;
+    }
+
+    @Override
+    void toFloats(int[] src, float[] dst, int length, float scale) {
+        int i = 0;
+        for (int bound = INTS.loopBound(length); i < bound; i += INTS.length()) {
+            FloatVector values = (FloatVector) IntVector.fromArray(INTS, src, i).convert(VectorOperators.I2F, 0);
+            values.mul(scale).intoArray(dst, i);
+        }
+        for (; i < length; i++) {
+            dst[i] = src[i] * scale;
+        }
+    }
+
+    // C2 on JDK 17 doesn't compile the float to int lane conversion, which then boxes every vector, so
+    // the vector loop leaves the rounded, clamped floats' bits in dst and a scalar pass casts them. Clamping
+    // before truncating gives the same ints since the bounds are whole numbers.
+    @Override
+    void quantize(float[] src, float[] dither, int[] dst, int length, int bits) {
+        float fullScale = (float) (1L << (bits - 1));
+        int min = -1 << (bits - 1);
+        int max = ~min;
+        FloatVector half = FloatVector.broadcast(FLOATS, 0.5f);
+        int i = 0;
+        int bound = FLOATS.loopBound(length);
+        for (; i < bound; i += FLOATS.length()) {
+            FloatVector x = FloatVector.fromArray(FLOATS, src, i).mul(fullScale);
+            if (dither != null) {
+                x = x.add(FloatVector.fromArray(FLOATS, dither, i));
+            }
+            // Round half away from zero, as the scalar loop does; the cast truncates
+            x = x.add(half.blend(-0.5f, x.lt(0f)));
+            x.max((float) min).min((float) max).reinterpretAsInts().intoArray(dst, i);
+        }
+        for (int j = 0; j < bound; j++) {
+            dst[j] = (int) Float.intBitsToFloat(dst[j]);
+        }
+        for (; i < length; i++) {
+            float x = src[i] * fullScale;
+            if (dither != null) {
+                x += dither[i];
+            }
+            int value = (int) (x + (x < 0 ? -0.5f : 0.5f));
+            dst[i] = Math.max(min, Math.min(max, value));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+// Picks the line buffer length. A fixed size is used as is; in auto mode the buffer starts small for
+// quick gain changes, doubles whenever the line runs dry and grows by half when the decoder falls
+// behind, then creeps back down after a long quiet stretch. Owned by the audio thread.
+class AdaptiveBuffer {
+    static final int AUTO = 0;
+    static final int MIN_MILLIS = 40;
+    static final int MAX_MILLIS = 1000;
+    static final int START_MILLIS = 100;
+    private static final long QUIET_NANOS = 120_000_000_000L;
+
+    private int fixedMillis = AUTO;
+    private int millis = START_MILLIS;
+    private long quietSince = System.nanoTime();
+
+    void setFixed(int fixedMillis) {
+        this.fixedMillis = fixedMillis;
+        millis = fixedMillis == AUTO ? START_MILLIS : fixedMillis;
+        quietSince = System.nanoTime();
+    }
+
+    int getMillis() {
+        return millis;
+    }
+
+    void underrun() {
+        grow(millis * 2);
+    }
+
+    // The decoder had nothing ready: slow storage, so ask for more headroom, though less than for a dropout.
+    void decoderStall() {
+        grow(millis * 3 / 2);
+    }
+
+    // Called while playing cleanly.
+    void playing(long now) {
+        if (fixedMillis == AUTO && now - quietSince > QUIET_NANOS) {
+            millis = Math.max(MIN_MILLIS, millis * 3 / 4);
+            quietSince = now;
+        }
+    }
+
+    int frames(float frameRate) {
+        return Math.max(1, (int) (frameRate * millis / 1000));
+    }
+
+    private void grow(int newMillis) {
+        if (fixedMillis == AUTO) {
+            millis = Math.min(MAX_MILLIS, newMillis);
+        }
+        quietSince = System.nanoTime();
+    }
+}
@@ -0,0 +1,17 @@
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+// A decoder for one or more file formats. Besides the built-in ones, decoders on the class path are picked
+// up from META-INF/services/AudioDecoder; those need a public class with a public no-argument constructor.
+public interface AudioDecoder {
+    // File name extensions this decoder reads, in lower case and without the dot.
+    Set<String> extensions();
+
+    // Opens the file as a stream of PCM that PcmCodec can handle. skip() on the stream is used for seeking,
+    // so decoders that can jump ahead cheaply should override it. Throws UnsupportedAudioFileException if
+    // the file turns out not to be in a format this decoder reads, so the next decoder can try.
+    AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException;
+}
@@ -0,0 +1,128 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.FormatConversionProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.ServiceConfigurationError;
+import java.util.Set;
+
+// Picks a decoder by file extension. Plug-in decoders come first, so they can take over a built-in format,
+// and each format falls back to whatever AudioSystem can read.
+class AudioDecoders {
+    private static final Map<String, List<AudioDecoder>> BY_EXTENSION = new HashMap<>();
+    private static final AudioDecoder SYSTEM = new SystemDecoder();
+
+    static {
+        List<AudioDecoder> decoders = new ArrayList<>();
+        try {
+            for (AudioDecoder decoder : ServiceLoader.load(AudioDecoder.class)) {
+                decoders.add(decoder);
+            }
+        } catch (ServiceConfigurationError e) {
+            e.printStackTrace();
+        }
+        decoders.add(new WavDecoder());
+        decoders.add(new FlacDecoder());
+        decoders.add(SYSTEM);
+        for (AudioDecoder decoder : decoders) {
+            for (String extension : decoder.extensions()) {
+                BY_EXTENSION.computeIfAbsent(extension, key -> new ArrayList<>()).add(decoder);
+            }
+        }
+    }
+
+    static Set<String> extensions() {
+        return BY_EXTENSION.keySet();
+    }
+
+    static boolean isAudioFile(Path path) {
+        return BY_EXTENSION.containsKey(extension(path.getFileName().toString()));
+    }
+
+    // Opens the file with the first decoder that accepts it and makes sure the result is plain PCM.
+    static AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException {
+        List<AudioDecoder> decoders = BY_EXTENSION.getOrDefault(extension(file.getName()), List.of(SYSTEM));
+        UnsupportedAudioFileException unsupported = null;
+        for (AudioDecoder decoder : decoders) {
+            AudioInputStream in;
+            try {
+                in = decoder.open(file);
+            } catch (UnsupportedAudioFileException e) {
+                unsupported = e;
+                continue;
+            }
+            return PcmCodec.isSupported(in.getFormat()) ? in : PcmCodec.toPcm(in);
+        }
+        throw unsupported != null ? unsupported : new UnsupportedAudioFileException("No decoder for " + file);
+    }
+
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    // Plain PCM WAVs through the memory-mapped reader; anything else in a WAV goes on to AudioSystem.
+    private static class WavDecoder implements AudioDecoder {
+        @Override
+        public Set<String> extensions() {
+            return Set.of("wav", "wave");
+        }
+
+        @Override
+        public AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException {
+            return WavFile.open(file).openStream(0);
+        }
+    }
+
+    // The JDK reads AIFF and AU itself. MP3 and Ogg Vorbis need a Java Sound provider such as mp3spi or
+    // vorbisspi on the class path, so those are only listed when one is installed.
+    private static class SystemDecoder implements AudioDecoder {
+        private final Set<String> extensions = new HashSet<>(List.of("wav", "wave", "aif", "aiff", "aifc", "au", "snd"));
+
+        SystemDecoder() {
+            if (canDecode("MP3") || canDecode("MPEG1L3")) {
+                extensions.add("mp3");
+            }
+            if (canDecode("VORBISENC")) {
+                extensions.add("ogg");
+                extensions.add("oga");
+            }
+        }
+
+        @Override
+        public Set<String> extensions() {
+            return extensions;
+        }
+
+        @Override
+        public AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException {
+            return AudioSystem.getAudioInputStream(file);
+        }
+
+        // Asks the providers directly; mp3spi only answers AudioSystem's queries for its own encoding class.
+        private static boolean canDecode(String encoding) {
+            try {
+                for (FormatConversionProvider provider : ServiceLoader.load(FormatConversionProvider.class)) {
+                    for (AudioFormat.Encoding source : provider.getSourceEncodings()) {
+                        if (source.toString().equals(encoding)) {
+                            return true;
+                        }
+                    }
+                }
+            } catch (ServiceConfigurationError e) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless gain balancing for whole folders, for machines without a display:
+//
+//   java -jar WavPlayer.jar normalize <folder> [--json <file>] [--in-place | --out <dir>] [--threads <n>]
+//
+// Gains come from the same analysis and folder index the player uses, so manual gains set in the player
+// are kept. Files are streamed through a fixed pool with a bounded queue, so memory stays flat no matter
+// how large the catalog is.
+class BatchNormalizer {
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+    private final File folder;
+    private final File jsonFile;
+    private final File outDir;
+    private final boolean inPlace;
+    private final int threads;
+
+    private LibraryIndex index;
+    private SessionJsonWriter json;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    BatchNormalizer(File folder, File jsonFile, File outDir, boolean inPlace, int threads) {
+        this.folder = folder;
+        this.jsonFile = jsonFile;
+        this.outDir = outDir;
+        this.inPlace = inPlace;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) {
+        File folder = null;
+        File jsonFile = null;
+        File outDir = null;
+        boolean inPlace = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--json":
+                        jsonFile = new File(args[++i]);
+                        break;
+                    case "--out":
+                        outDir = new File(args[++i]);
+                        break;
+                    case "--in-place":
+                        inPlace = true;
+                        break;
+                    case "--threads":
+                        threads = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    default:
+                        folder = new File(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            folder = null;
+        }
+        if (folder == null || !folder.isDirectory() || (inPlace && outDir != null)) {
+            System.out.println("Usage: normalize <folder> [--json <file>] [--in-place | --out <dir>] [--threads <n>]");
+            System.exit(2);
+        }
+        if (jsonFile == null && outDir == null && !inPlace) {
+            jsonFile = new File(folder.getAbsoluteFile().getName() + ".json");
+        }
+
+        BatchNormalizer normalizer = new BatchNormalizer(folder.getAbsoluteFile(), jsonFile, outDir, inPlace, threads);
+        try {
+            normalizer.run();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(normalizer.failed.get() > 0 ? 1 : 0);
+    }
+
+    void run() throws IOException, InterruptedException {
+        index = LibraryIndex.open(folder);
+        if (jsonFile != null) {
+            json = new SessionJsonWriter(jsonFile, folder.getAbsolutePath());
+        }
+
+        // A full queue makes the scanner thread run the file itself, which throttles the scan to the workers
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        long start = System.nanoTime();
+        FolderScanner scanner = new FolderScanner(index, batch -> {
+            for (File file : batch) {
+                workers.execute(() -> process(file));
+            }
+        });
+        scanner.start();
+        while (!scanner.isDone()) {
+            Thread.sleep(REPORT_INTERVAL_MILLIS / 10);
+        }
+        workers.shutdown();
+        while (!workers.awaitTermination(REPORT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            report(start, scanner.getFound());
+        }
+
+        if (json != null) {
+            json.close();
+        }
+        // Every file was marked as it was processed, so the index drops the ones that are gone without a
+        // list of the whole catalog being kept for this
+        index.saveSeen();
+        report(start, scanner.getFound());
+        if (failed.get() > 0) {
+            System.out.println(failed.get() + " files failed");
+        }
+    }
+
+    private void report(long start, int found) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        System.out.printf("%d/%d files, %.1f files/sec%n", processed.get(), found, processed.get() / seconds);
+    }
+
+    private void process(File file) {
+        try {
+            double gain = gainOf(file);
+            if (json != null) {
+                writeEntry(file, gain);
+            }
+            if (inPlace || outDir != null) {
+                rewrite(file, gain);
+            }
+        } catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+            System.out.println(file + ": " + e.getMessage());
+            failed.incrementAndGet();
+        } finally {
+            index.markSeen(file);
+            processed.incrementAndGet();
+        }
+    }
+
+    // The gain the player would apply: a manual or still valid cached gain, otherwise a fresh measurement.
+    private double gainOf(File file) throws UnsupportedAudioFileException, IOException {
+        LibraryIndex.Entry cached = index.getValid(file);
+        if (cached != null && (cached.analyzed || cached.manual)) {
+            return cached.gain;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        LoudnessAnalyzer.Result result = LoudnessAnalyzer.analyze(file);
+        result.size = attributes.size();
+        result.modified = attributes.lastModifiedTime().toMillis();
+        index.put(file, result.toEntry());
+        return result.gain;
+    }
+
+    private synchronized void writeEntry(File file, double gain) throws IOException {
+        json.add(file.getName(), index.key(file), gain);
+    }
+
+    // Writes the file with its gain applied through the player's limiter. The result is written next to the
+    // target and moved over it, so an interrupted job never leaves a truncated file behind.
+    private void rewrite(File file, double gain) throws UnsupportedAudioFileException, IOException {
+        Path target = inPlace ? file.toPath() : outDir.toPath().resolve(index.key(file));
+        String name = target.getFileName().toString();
+        if (!name.toLowerCase(Locale.ROOT).endsWith(".wav")) {
+            // The output is always a WAV, which must not replace a compressed original under its old name
+            if (inPlace) {
+                throw new UnsupportedAudioFileException("Only WAV files can be rewritten in place");
+            }
+            target = target.resolveSibling(name.substring(0, Math.max(0, name.lastIndexOf('.'))) + ".wav");
+        }
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (AudioInputStream in = PcmCodec.openPcm(file)) {
+            GainStage gainStage = new GainStage();
+            if (!gainStage.configure(in.getFormat(), NormalizingStream.CHUNK_FRAMES)) {
+                throw new UnsupportedAudioFileException("No software gain for " + in.getFormat());
+            }
+            gainStage.setGain(gain, true);
+            NormalizingStream normalized = new NormalizingStream(in, gainStage);
+            AudioSystem.write(new AudioInputStream(normalized, in.getFormat(), in.getFrameLength()), AudioFileFormat.Type.WAVE, temp.toFile());
+        } catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Runs PCM through a GainStage and drops its look-ahead delay, so the output lines up sample for sample
+    // with the input and has the same length.
+    private static class NormalizingStream extends InputStream {
+        static final int CHUNK_FRAMES = 4096;
+
+        private final AudioInputStream in;
+        private final GainStage gainStage;
+        private final int frameSize;
+        private final byte[] buffer;
+        private int position = 0;
+        private int limit = 0;
+        private long skip;
+        private boolean drained = false;
+
+        NormalizingStream(AudioInputStream in, GainStage gainStage) {
+            AudioFormat format = in.getFormat();
+            this.in = in;
+            this.gainStage = gainStage;
+            this.frameSize = Math.max(1, format.getFrameSize());
+            // Room for a full chunk plus the look-ahead tail that drain() appends at the end
+            this.buffer = new byte[frameSize * (CHUNK_FRAMES + gainStage.latency())];
+            this.skip = (long) gainStage.latency() * frameSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (position == limit) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            if (drained) {
+                return false;
+            }
+            int length = 0;
+            int bytesRead = 0;
+            int chunk = frameSize * CHUNK_FRAMES;
+            while (length < chunk && (bytesRead = in.read(buffer, length, chunk - length)) != -1) {
+                length += bytesRead;
+            }
+            length -= length % frameSize;
+            if (length > 0) {
+                gainStage.process(buffer, 0, length);
+            }
+            if (bytesRead == -1) {
+                length += gainStage.drain(buffer, length);
+                drained = true;
+            }
+            int skipped = (int) Math.min(skip, length);
+            skip -= skipped;
+            position = skipped;
+            limit = length;
+            return length > 0 || !drained;
+        }
+    }
+}
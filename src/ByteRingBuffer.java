@@ -0,0 +1,83 @@
+// Single-producer single-consumer byte ring. The producer blocks while the ring is full; the consumer
+// never blocks, so the audio thread can keep serving commands while a decoder catches up.
+class ByteRingBuffer {
+    private final byte[] data;
+    private long written = 0;
+    private long consumed = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    ByteRingBuffer(int capacity) {
+        data = new byte[capacity];
+    }
+
+    int capacity() {
+        return data.length;
+    }
+
+    synchronized int available() {
+        return (int) (written - consumed);
+    }
+
+    // Blocks until at least min(bytes, capacity) bytes are free. Returns false if the ring was closed.
+    synchronized boolean awaitSpace(int bytes) throws InterruptedException {
+        int wanted = Math.min(bytes, data.length);
+        while (!closed && data.length - (written - consumed) < wanted) {
+            wait();
+        }
+        return !closed;
+    }
+
+    // Returns false if the ring was closed before all bytes could be written.
+    synchronized boolean write(byte[] b, int off, int len) throws InterruptedException {
+        while (len > 0) {
+            while (!closed && written - consumed == data.length) {
+                wait();
+            }
+            if (closed) {
+                return false;
+            }
+            int free = data.length - (int) (written - consumed);
+            int pos = (int) (written % data.length);
+            int n = Math.min(len, Math.min(free, data.length - pos));
+            System.arraycopy(b, off, data, pos, n);
+            written += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+        return true;
+    }
+
+    // Copies out a multiple of granularity bytes without blocking. Returns 0 if less than that is buffered yet,
+    // or -1 once everything has been consumed after finish() or the ring was closed; a trailing partial
+    // frame is dropped.
+    synchronized int poll(byte[] b, int off, int len, int granularity) {
+        int n = (int) Math.min(len, written - consumed);
+        n -= n % granularity;
+        if (closed || (n == 0 && finished)) {
+            return -1;
+        }
+        for (int copied = 0; copied < n; ) {
+            int pos = (int) (consumed % data.length);
+            int chunk = Math.min(n - copied, data.length - pos);
+            System.arraycopy(data, pos, b, off + copied, chunk);
+            consumed += chunk;
+            copied += chunk;
+        }
+        if (n > 0) {
+            notifyAll();
+        }
+        return n;
+    }
+
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+// CSV of the tracks that clip: sources already over 0 dBTP, and tracks whose true peak at their current
+// gain goes over the limiter ceiling, so the limiter has to squash them. Worst first.
+class ClipReport {
+    // Taken when the report is made, as rows move with the shuffle while the save dialog is open
+    private static class Track {
+        final File file;
+        final float truePeak;
+        final double gain;
+        final double overCeiling;
+        final boolean clips;
+
+        Track(TrackTableModel tracks, int row) {
+            file = tracks.getFile(row);
+            truePeak = tracks.getTruePeak(row);
+            gain = tracks.getGain(row);
+            overCeiling = tracks.overCeiling(row);
+            clips = tracks.clips(row);
+        }
+    }
+
+    private final List<Track> clipping = new ArrayList<>();
+    private int unmeasured = 0;
+
+    // Called on the EDT, as it reads the model.
+    ClipReport(TrackTableModel tracks) {
+        for (int row = 0; row < tracks.getRowCount(); row++) {
+            float truePeak = tracks.getTruePeak(row);
+            if (Float.isNaN(truePeak)) {
+                unmeasured++;
+            } else if (truePeak >= 0 || tracks.clips(row)) {
+                clipping.add(new Track(tracks, row));
+            }
+        }
+        clipping.sort(Comparator.comparingDouble(track -> -track.overCeiling));
+    }
+
+    int size() {
+        return clipping.size();
+    }
+
+    // Tracks still waiting for analysis, which the report can't say anything about.
+    int unmeasured() {
+        return unmeasured;
+    }
+
+    void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("File,True Peak (dBTP),Gain (dB),Peak After Gain (dBTP),Over Ceiling (dB),Issue");
+            for (Track track : clipping) {
+                String issue = track.truePeak >= 0 ? (track.clips ? "source clipped; limited" : "source clipped") : "limited";
+                out.println(String.format(Locale.ROOT, "%s,%.1f,%.1f,%.1f,%.1f,%s", quote(track.file.getPath()),
+                        track.truePeak, track.gain, track.truePeak + track.gain, Math.max(0, track.overCeiling), issue));
+            }
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
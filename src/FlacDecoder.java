@@ -0,0 +1,576 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+// FLAC decoder. Each block is decoded into per-channel int arrays and written straight into the reader's
+// byte array as little-endian PCM, so there is no conversion stream on top. Seeking jumps to the closest
+// SEEKTABLE point and decodes forward from there. CRCs are not checked.
+class FlacDecoder implements AudioDecoder {
+    private static final int MARKER = 0x664C6143; // "fLaC"
+
+    @Override
+    public Set<String> extensions() {
+        return Set.of("flac");
+    }
+
+    @Override
+    public AudioInputStream open(File file) throws UnsupportedAudioFileException, IOException {
+        FlacStream stream = new FlacStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        try {
+            stream.readMetadata(file);
+        } catch (UnsupportedAudioFileException | IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        return new AudioInputStream(stream, stream.format, stream.totalFrames > 0 ? stream.totalFrames : AudioSystem.NOT_SPECIFIED);
+    }
+
+    private static class FlacStream extends InputStream {
+        private final BitReader in;
+        AudioFormat format;
+        long totalFrames;
+        private int channels;
+        private int bitsPerSample;
+        private int bytesPerSample;
+        private int frameSize;
+        private long firstFrameOffset;
+        private final List<long[]> seekPoints = new ArrayList<>();
+
+        private int[][] samples = new int[0][];
+        private int blockSize = 0;
+        private int blockPosition = 0;
+        // Frame number of the next frame read() returns
+        private long position = 0;
+
+        FlacStream(FileChannel channel) {
+            in = new BitReader(channel);
+        }
+
+        void readMetadata(File file) throws UnsupportedAudioFileException, IOException {
+            skipId3();
+            if (in.readBits(32) != MARKER) {
+                throw new UnsupportedAudioFileException(file + " is not a FLAC file");
+            }
+            boolean last;
+            boolean hasStreamInfo = false;
+            do {
+                last = in.readBits(1) == 1;
+                int type = in.readBits(7);
+                int length = in.readBits(24);
+                if (type == 0 && length >= 34) {
+                    in.readBits(16);
+                    int maxBlockSize = in.readBits(16);
+                    in.readBits(24);
+                    in.readBits(24);
+                    int sampleRate = in.readBits(20);
+                    channels = in.readBits(3) + 1;
+                    bitsPerSample = in.readBits(5) + 1;
+                    totalFrames = ((long) in.readBits(4) << 32) | (in.readBits(32) & 0xFFFFFFFFL);
+                    in.skip(length - 18);
+                    samples = new int[channels][Math.max(16, maxBlockSize)];
+                    bytesPerSample = (bitsPerSample + 7) / 8;
+                    frameSize = bytesPerSample * channels;
+                    format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, sampleRate, bytesPerSample * 8, channels, frameSize, sampleRate, false);
+                    hasStreamInfo = true;
+                } else if (type == 3) {
+                    for (int i = 0; i < length / 18; i++) {
+                        long sample = ((long) in.readBits(32) << 32) | (in.readBits(32) & 0xFFFFFFFFL);
+                        long offset = ((long) in.readBits(32) << 32) | (in.readBits(32) & 0xFFFFFFFFL);
+                        in.readBits(16);
+                        // Placeholder points have all bits of the sample number set
+                        if (sample != -1) {
+                            seekPoints.add(new long[]{sample, offset});
+                        }
+                    }
+                    in.skip(length % 18);
+                } else {
+                    // Pictures can be megabytes, so skip over them instead of reading
+                    in.skip(length);
+                }
+            } while (!last);
+            if (!hasStreamInfo) {
+                throw new UnsupportedAudioFileException(file + " has no STREAMINFO block");
+            }
+            if (bitsPerSample > 32 || (bitsPerSample == 32 && channels == 2)) {
+                // Stereo decorrelation of 32-bit audio needs 33-bit side samples
+                throw new UnsupportedAudioFileException(file + " has unsupported sample size " + bitsPerSample);
+            }
+            firstFrameOffset = in.position();
+        }
+
+        // Taggers sometimes put an ID3v2 tag in front of the stream.
+        private void skipId3() throws IOException {
+            if (in.peekBits(24) != 0x494433) {
+                return;
+            }
+            in.readBits(24);
+            in.readBits(16);
+            int flags = in.readBits(8);
+            int size = 0;
+            for (int i = 0; i < 4; i++) {
+                size = (size << 7) | (in.readBits(8) & 0x7F);
+            }
+            in.skip(size + ((flags & 0x10) != 0 ? 10 : 0));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        // Only whole frames are returned; AudioInputStream never asks for less than one.
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (blockPosition == blockSize && !nextBlock()) {
+                return -1;
+            }
+            int frames = Math.min(len / frameSize, blockSize - blockPosition);
+            int shift = bytesPerSample * 8 - bitsPerSample;
+            int p = off;
+            for (int i = blockPosition; i < blockPosition + frames; i++) {
+                for (int c = 0; c < channels; c++) {
+                    int value = samples[c][i] << shift;
+                    for (int k = 0; k < bytesPerSample; k++) {
+                        b[p++] = (byte) (value >> (k * 8));
+                    }
+                }
+            }
+            blockPosition += frames;
+            position += frames;
+            return frames * frameSize;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long target = position + n / frameSize;
+            long start = position;
+            long[] point = null;
+            for (long[] candidate : seekPoints) {
+                if (candidate[0] <= target && candidate[0] > position) {
+                    point = candidate;
+                }
+            }
+            if (point != null) {
+                in.seek(firstFrameOffset + point[1]);
+                blockSize = 0;
+                blockPosition = 0;
+                position = point[0];
+            }
+            while (position < target) {
+                if (blockPosition == blockSize && !nextBlock()) {
+                    break;
+                }
+                int frames = (int) Math.min(target - position, blockSize - blockPosition);
+                blockPosition += frames;
+                position += frames;
+            }
+            return (position - start) * frameSize;
+        }
+
+        @Override
+        public int available() {
+            return (blockSize - blockPosition) * frameSize;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        // Decodes the next frame into samples. Returns false at the end of the stream.
+        private boolean nextBlock() throws IOException {
+            if (totalFrames > 0 && position >= totalFrames) {
+                return false;
+            }
+            try {
+                if (!sync()) {
+                    return false;
+                }
+                readFrame();
+            } catch (EOFException e) {
+                // A truncated last frame ends the track
+                return false;
+            }
+            blockPosition = 0;
+            return true;
+        }
+
+        // Finds the next frame sync code: 14 set bits, a reserved zero and the blocking strategy bit.
+        private boolean sync() throws IOException {
+            in.alignToByte();
+            int previous = 0;
+            while (true) {
+                if (in.atEnd()) {
+                    return false;
+                }
+                int current = in.readBits(8);
+                if (previous == 0xFF && (current & 0xFE) == 0xF8) {
+                    return true;
+                }
+                previous = current;
+            }
+        }
+
+        private void readFrame() throws IOException {
+            int blockSizeCode = in.readBits(4);
+            int rateCode = in.readBits(4);
+            int channelCode = in.readBits(4);
+            int sizeCode = in.readBits(3);
+            in.readBits(1);
+
+            // The frame or sample number, UTF-8 style; the position is tracked here instead
+            int first = in.readBits(8);
+            for (int extra = Integer.numberOfLeadingZeros(~first << 24); extra > 1; extra--) {
+                in.readBits(8);
+            }
+
+            int size;
+            if (blockSizeCode == 1) {
+                size = 192;
+            } else if (blockSizeCode >= 2 && blockSizeCode <= 5) {
+                size = 576 << (blockSizeCode - 2);
+            } else if (blockSizeCode == 6) {
+                size = in.readBits(8) + 1;
+            } else if (blockSizeCode == 7) {
+                size = in.readBits(16) + 1;
+            } else if (blockSizeCode >= 8) {
+                size = 256 << (blockSizeCode - 8);
+            } else {
+                throw new IOException("Reserved FLAC block size");
+            }
+            if (rateCode == 12) {
+                in.readBits(8);
+            } else if (rateCode == 13 || rateCode == 14) {
+                in.readBits(16);
+            }
+            in.readBits(8);
+
+            int frameBits;
+            switch (sizeCode) {
+                case 0:
+                    frameBits = bitsPerSample;
+                    break;
+                case 1:
+                    frameBits = 8;
+                    break;
+                case 2:
+                    frameBits = 12;
+                    break;
+                case 4:
+                    frameBits = 16;
+                    break;
+                case 5:
+                    frameBits = 20;
+                    break;
+                case 6:
+                    frameBits = 24;
+                    break;
+                case 7:
+                    frameBits = 32;
+                    break;
+                default:
+                    throw new IOException("Reserved FLAC sample size");
+            }
+            int frameChannels = channelCode < 8 ? channelCode + 1 : 2;
+            if (frameBits != bitsPerSample || frameChannels != channels || channelCode > 10) {
+                throw new IOException("FLAC frame doesn't match the stream format");
+            }
+            if (size > samples[0].length) {
+                samples = new int[channels][size];
+            }
+
+            for (int c = 0; c < channels; c++) {
+                boolean side = (channelCode == 8 || channelCode == 10) ? c == 1 : channelCode == 9 && c == 0;
+                readSubframe(samples[c], size, frameBits + (side ? 1 : 0));
+            }
+            decorrelate(channelCode, size);
+            in.alignToByte();
+            in.readBits(16);
+            blockSize = size;
+        }
+
+        private void decorrelate(int channelCode, int size) {
+            int[] a = samples[0];
+            int[] b = channels > 1 ? samples[1] : null;
+            switch (channelCode) {
+                case 8:
+                    // left, side
+                    for (int i = 0; i < size; i++) {
+                        b[i] = a[i] - b[i];
+                    }
+                    break;
+                case 9:
+                    // side, right
+                    for (int i = 0; i < size; i++) {
+                        a[i] += b[i];
+                    }
+                    break;
+                case 10:
+                    // mid, side
+                    for (int i = 0; i < size; i++) {
+                        int mid = (a[i] << 1) | (b[i] & 1);
+                        int side = b[i];
+                        a[i] = (mid + side) >> 1;
+                        b[i] = (mid - side) >> 1;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void readSubframe(int[] out, int size, int bits) throws IOException {
+            in.readBits(1);
+            int type = in.readBits(6);
+            int wasted = 0;
+            if (in.readBits(1) == 1) {
+                wasted = in.readUnary() + 1;
+                bits -= wasted;
+            }
+            if (type == 0) {
+                int value = in.readSigned(bits);
+                for (int i = 0; i < size; i++) {
+                    out[i] = value;
+                }
+            } else if (type == 1) {
+                for (int i = 0; i < size; i++) {
+                    out[i] = in.readSigned(bits);
+                }
+            } else if (type >= 8 && type <= 12) {
+                int order = type - 8;
+                checkOrder(order, size);
+                for (int i = 0; i < order; i++) {
+                    out[i] = in.readSigned(bits);
+                }
+                readResidual(out, size, order);
+                restoreFixed(out, size, order);
+            } else if (type >= 32) {
+                int order = type - 31;
+                checkOrder(order, size);
+                for (int i = 0; i < order; i++) {
+                    out[i] = in.readSigned(bits);
+                }
+                int precision = in.readBits(4) + 1;
+                int shift = in.readSigned(5);
+                if (precision == 16 || shift < 0) {
+                    throw new IOException("Invalid FLAC LPC parameters");
+                }
+                int[] coefficients = new int[order];
+                for (int i = 0; i < order; i++) {
+                    coefficients[i] = in.readSigned(precision);
+                }
+                readResidual(out, size, order);
+                restoreLpc(out, size, coefficients, shift);
+            } else {
+                throw new IOException("Reserved FLAC subframe type " + type);
+            }
+            if (wasted > 0) {
+                for (int i = 0; i < size; i++) {
+                    out[i] <<= wasted;
+                }
+            }
+        }
+
+        // A predictor can't have more warm-up samples than the block has samples.
+        private void checkOrder(int order, int size) throws IOException {
+            if (order > size) {
+                throw new IOException("FLAC predictor order " + order + " exceeds block size " + size);
+            }
+        }
+
+        // Rice-coded residual, partitioned; stored in out after the warm-up samples.
+        private void readResidual(int[] out, int size, int order) throws IOException {
+            int method = in.readBits(2);
+            if (method > 1) {
+                throw new IOException("Reserved FLAC residual coding");
+            }
+            int parameterBits = method == 0 ? 4 : 5;
+            int escape = method == 0 ? 15 : 31;
+            int partitionOrder = in.readBits(4);
+            int partitionSize = size >> partitionOrder;
+            int i = order;
+            for (int partition = 0; partition < 1 << partitionOrder; partition++) {
+                int count = partition == 0 ? partitionSize - order : partitionSize;
+                if (count < 0 || i + count > size) {
+                    throw new IOException("Invalid FLAC residual partition");
+                }
+                int parameter = in.readBits(parameterBits);
+                if (parameter == escape) {
+                    int bits = in.readBits(5);
+                    for (int end = i + count; i < end; i++) {
+                        out[i] = in.readSigned(bits);
+                    }
+                } else {
+                    for (int end = i + count; i < end; i++) {
+                        out[i] = in.readRice(parameter);
+                    }
+                }
+            }
+        }
+
+        private static void restoreFixed(int[] x, int size, int order) {
+            switch (order) {
+                case 1:
+                    for (int i = 1; i < size; i++) {
+                        x[i] += x[i - 1];
+                    }
+                    break;
+                case 2:
+                    for (int i = 2; i < size; i++) {
+                        x[i] += 2 * x[i - 1] - x[i - 2];
+                    }
+                    break;
+                case 3:
+                    for (int i = 3; i < size; i++) {
+                        x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                    }
+                    break;
+                case 4:
+                    for (int i = 4; i < size; i++) {
+                        x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private static void restoreLpc(int[] x, int size, int[] coefficients, int shift) {
+            int order = coefficients.length;
+            for (int i = order; i < size; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefficients[j] * x[i - 1 - j];
+                }
+                x[i] += (int) (sum >> shift);
+            }
+        }
+    }
+
+    // Big-endian bit reader over a file channel.
+    private static class BitReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final byte[] bytes = buffer.array();
+        private int next = 0;
+        private int limit = 0;
+        // The low bitCount bits of cache are unread
+        private long cache = 0;
+        private int bitCount = 0;
+
+        BitReader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        int readBits(int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            while (bitCount < n) {
+                cache = (cache << 8) | nextByte();
+                bitCount += 8;
+            }
+            bitCount -= n;
+            return (int) ((cache >>> bitCount) & ((1L << n) - 1));
+        }
+
+        int peekBits(int n) throws IOException {
+            while (bitCount < n) {
+                cache = (cache << 8) | nextByte();
+                bitCount += 8;
+            }
+            return (int) ((cache >>> (bitCount - n)) & ((1L << n) - 1));
+        }
+
+        int readSigned(int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            int value = readBits(n);
+            return n == 32 ? value : (value << (32 - n)) >> (32 - n);
+        }
+
+        // Counts zero bits up to and including the next set bit.
+        int readUnary() throws IOException {
+            int zeros = 0;
+            while (true) {
+                long unread = cache & ((1L << bitCount) - 1);
+                if (unread != 0) {
+                    int highest = 63 - Long.numberOfLeadingZeros(unread);
+                    zeros += bitCount - 1 - highest;
+                    bitCount = highest;
+                    return zeros;
+                }
+                zeros += bitCount;
+                cache = nextByte();
+                bitCount = 8;
+            }
+        }
+
+        int readRice(int parameter) throws IOException {
+            int value = (readUnary() << parameter) | readBits(parameter);
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        void alignToByte() {
+            bitCount -= bitCount % 8;
+        }
+
+        boolean atEnd() throws IOException {
+            if (bitCount >= 8 || next < limit) {
+                return false;
+            }
+            fill();
+            return next == limit;
+        }
+
+        // Byte offset of the next unread byte; only meaningful when aligned.
+        long position() throws IOException {
+            return channel.position() - (limit - next) - bitCount / 8;
+        }
+
+        void seek(long offset) throws IOException {
+            channel.position(offset);
+            next = 0;
+            limit = 0;
+            bitCount = 0;
+        }
+
+        void skip(long count) throws IOException {
+            seek(position() + count);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private int nextByte() throws IOException {
+            if (next == limit) {
+                fill();
+                if (next == limit) {
+                    throw new EOFException();
+                }
+            }
+            return bytes[next++] & 0xFF;
+        }
+
+        private void fill() throws IOException {
+            buffer.clear();
+            int count = channel.read(buffer);
+            next = 0;
+            limit = Math.max(0, count);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Walks a folder tree in parallel and hands audio files to onBatch as each directory is listed, so the
+// library fills in while slow storage is still being read. Symlinked directories are followed once;
+// a link back into the tree is recognised by its file key and skipped.
+class FolderScanner {
+    private static final int BATCH_SIZE = 512;
+
+    // Listing is I/O bound, so allow more threads than cores to keep several directory reads in flight
+    private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+    private final LibraryIndex index;
+    private final Consumer<List<File>> onBatch;
+    private final Set<Object> visited = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger found = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private ForkJoinTask<?> task;
+
+    FolderScanner(LibraryIndex index, Consumer<List<File>> onBatch) {
+        this.index = index;
+        this.onBatch = onBatch;
+    }
+
+    void start() {
+        // beginScan reads the index the first time, which belongs on the pool rather than the caller's thread
+        task = POOL.submit(() -> {
+            index.beginScan();
+            new DirTask("").invoke();
+        });
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isDone() {
+        return task != null && task.isDone();
+    }
+
+    int getFound() {
+        return found.get();
+    }
+
+    // Returns false if the scan was cancelled and the files were not handed over.
+    private boolean emit(List<File> files) {
+        if (cancelled) {
+            return false;
+        }
+        for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+            List<File> batch = new ArrayList<>(files.subList(i, Math.min(files.size(), i + BATCH_SIZE)));
+            found.addAndGet(batch.size());
+            onBatch.accept(batch);
+        }
+        return true;
+    }
+
+    private class DirTask extends RecursiveAction {
+        private final String dirKey;
+
+        DirTask(String dirKey) {
+            this.dirKey = dirKey;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+            Path dir = dirKey.isEmpty() ? index.root : index.root.resolve(dirKey);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            Object key = attributes.fileKey() != null ? attributes.fileKey() : realPath(dir);
+            if (!visited.add(key)) {
+                return;
+            }
+            long modified = attributes.lastModifiedTime().toMillis();
+
+            List<File> files = new ArrayList<>();
+            List<String> subdirs = index.cachedDir(dirKey, modified, files);
+            if (subdirs == null) {
+                subdirs = new ArrayList<>();
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                    for (Path child : children) {
+                        if (cancelled) {
+                            return;
+                        }
+                        String childKey = dirKey.isEmpty() ? child.getFileName().toString() : dirKey + "/" + child.getFileName();
+                        if (Files.isDirectory(child)) {
+                            subdirs.add(childKey);
+                        } else if (AudioDecoders.isAudioFile(child) && Files.isRegularFile(child)) {
+                            files.add(child.toFile());
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            if (!emit(files)) {
+                return;
+            }
+            index.recordDir(dirKey, modified, subdirs);
+
+            List<DirTask> tasks = new ArrayList<>(subdirs.size());
+            for (String subdir : subdirs) {
+                tasks.add(new DirTask(subdir));
+            }
+            invokeAll(tasks);
+        }
+
+        private Object realPath(Path dir) {
+            try {
+                return dir.toRealPath();
+            } catch (IOException e) {
+                return dir.toAbsolutePath().normalize();
+            }
+        }
+    }
+}
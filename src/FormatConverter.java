@@ -0,0 +1,166 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Converts PCM to another sample rate, bit depth and channel count: samples go to float, are mixed to the
+// target channels, resampled and quantized with TPDF dither. Runs on the decoder thread, so the audio
+// thread only ever sees the output format.
+class FormatConverter extends InputStream {
+    private static final int CHUNK_FRAMES = 1024;
+    // 5.1 in WAV channel order (FL FR FC LFE BL BR) down to stereo, as in ITU-R BS.775
+    private static final float CENTER = 0.7071f;
+    private static final float SURROUND = 0.7071f;
+    private static final float DOWNMIX_SCALE = 1 / (1 + CENTER + SURROUND);
+
+    private final AudioInputStream in;
+    private final PcmCodec source;
+    private final PcmCodec target;
+    private final Resampler resampler;
+    private final byte[] inBytes;
+    private final float[] inSamples;
+    private final float[] mixed;
+    private final float[] resampled;
+    private final float[] dither;
+    private final boolean dithering;
+    private final byte[] outBytes;
+    private int carry = 0;
+    private int position = 0;
+    private int limit = 0;
+    private boolean ended = false;
+    private int random = 0x2545F491;
+
+    private FormatConverter(AudioInputStream in, AudioFormat format) {
+        this.in = in;
+        source = new PcmCodec(in.getFormat());
+        target = new PcmCodec(format);
+        resampler = in.getFormat().getSampleRate() == format.getSampleRate() ? null
+                : new Resampler(target.channels, in.getFormat().getSampleRate(), format.getSampleRate());
+        inBytes = new byte[CHUNK_FRAMES * source.frameSize];
+        inSamples = new float[CHUNK_FRAMES * source.channels];
+        mixed = new float[CHUNK_FRAMES * target.channels];
+        int outFrames = resampler == null ? CHUNK_FRAMES : resampler.maxOutput(CHUNK_FRAMES);
+        resampled = new float[outFrames * target.channels];
+        dither = new float[outFrames * target.channels];
+        // Samples that pass through unchanged into as many bits or more don't need dither
+        dithering = resampler != null || target.bytesPerSample < source.bytesPerSample || source.channels > 1 && source.channels != target.channels;
+        outBytes = new byte[outFrames * target.frameSize];
+        source.reserve(CHUNK_FRAMES);
+        target.reserve(outFrames);
+    }
+
+    static boolean canConvert(AudioFormat from, AudioFormat to) {
+        return PcmCodec.isSupported(from) && PcmCodec.isSupported(to);
+    }
+
+    static AudioInputStream convert(AudioInputStream in, AudioFormat format) {
+        FormatConverter converter = new FormatConverter(in, format);
+        long frames = in.getFrameLength();
+        if (frames != AudioSystem.NOT_SPECIFIED && converter.resampler != null) {
+            frames = converter.resampler.outputFrames(frames);
+        }
+        return new AudioInputStream(converter, format, frames);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (position == limit) {
+            if (ended) {
+                return -1;
+            }
+            fill();
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(outBytes, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void fill() throws IOException {
+        int bytesRead = in.read(inBytes, carry, inBytes.length - carry);
+        int frames = 0;
+        if (bytesRead == -1) {
+            ended = true;
+        } else {
+            int available = carry + bytesRead;
+            int whole = available - available % source.frameSize;
+            frames = source.toFloats(inBytes, 0, whole, inSamples) / source.channels;
+            carry = available - whole;
+            System.arraycopy(inBytes, whole, inBytes, 0, carry);
+        }
+
+        mix(frames);
+        int outFrames;
+        if (resampler == null) {
+            System.arraycopy(mixed, 0, resampled, 0, frames * target.channels);
+            outFrames = frames;
+        } else {
+            outFrames = ended ? resampler.flush(resampled) : resampler.process(mixed, frames, resampled);
+        }
+        int samples = outFrames * target.channels;
+        if (dithering) {
+            fillDither(samples);
+        }
+        target.toBytes(resampled, samples, outBytes, 0, dithering ? dither : null);
+        position = 0;
+        limit = outFrames * target.frameSize;
+    }
+
+    private void mix(int frames) {
+        int from = source.channels;
+        int to = target.channels;
+        if (from == to) {
+            System.arraycopy(inSamples, 0, mixed, 0, frames * from);
+        } else if (from == 1) {
+            for (int i = 0; i < frames; i++) {
+                for (int c = 0; c < to; c++) {
+                    mixed[i * to + c] = c < 2 ? inSamples[i] : 0f;
+                }
+            }
+        } else if (from == 6 && to == 2) {
+            for (int i = 0; i < frames; i++) {
+                int s = i * 6;
+                float center = inSamples[s + 2] * CENTER;
+                mixed[i * 2] = (inSamples[s] + center + inSamples[s + 4] * SURROUND) * DOWNMIX_SCALE;
+                mixed[i * 2 + 1] = (inSamples[s + 1] + center + inSamples[s + 5] * SURROUND) * DOWNMIX_SCALE;
+            }
+        } else {
+            // Any other layout: each target channel averages every to-th source channel
+            for (int i = 0; i < frames; i++) {
+                for (int c = 0; c < to; c++) {
+                    float sum = 0;
+                    int count = 0;
+                    for (int s = c; s < from; s += to) {
+                        sum += inSamples[i * from + s];
+                        count++;
+                    }
+                    mixed[i * to + c] = count == 0 ? 0f : sum / count;
+                }
+            }
+        }
+    }
+
+    // Triangular noise of +-1 LSB from a xorshift generator, the two halves of each draw summed.
+    private void fillDither(int samples) {
+        int r = random;
+        for (int i = 0; i < samples; i++) {
+            r ^= r << 13;
+            r ^= r >>> 17;
+            r ^= r << 5;
+            dither[i] = ((r & 0xFFFF) + (r >>> 16)) / 65536f - 1f;
+        }
+        random = r;
+    }
+}
@@ -0,0 +1,168 @@
+import javax.sound.sampled.AudioFormat;
+import java.util.Arrays;
+
+// Applies the track gain to PCM samples in place, followed by a look-ahead peak limiter that keeps
+// boosted material under CEILING_DB. All buffers are sized in configure(), so process() never allocates.
+class GainStage {
+    static final double CEILING_DB = -1.0;
+    static final double LOOKAHEAD_SECONDS = 0.005;
+    static final double RELEASE_SECONDS = 0.05;
+    static final double RAMP_SECONDS = 0.01;
+
+    private final SampleKernels kernels = SampleKernels.get();
+    private PcmCodec codec;
+    private int channels;
+    private float[] samples = new float[0];
+    private float ceiling;
+
+    private double gain = 1.0;
+    private double targetGain = 1.0;
+    private double gainStep = 0;
+    private int rampFrames = 1;
+
+    private int lookahead;
+    private float[] delay = new float[0];
+    private float[] delayedLimit = new float[0];
+    private int delayPos;
+    private float[] windowLimit = new float[0];
+    private long[] windowFrame = new long[0];
+    private int windowHead;
+    private int windowSize;
+    private long frame;
+    private double envelope;
+    private double attack;
+    private double release;
+
+    // Returns false if the format can't be processed in software, in which case process() is a no-op.
+    boolean configure(AudioFormat format, int maxFrames) {
+        if (!PcmCodec.isSupported(format)) {
+            codec = null;
+            return false;
+        }
+        codec = new PcmCodec(format);
+        codec.reserve(maxFrames);
+        channels = codec.channels;
+        samples = new float[maxFrames * channels];
+        ceiling = (float) Math.pow(10, CEILING_DB / 20);
+        double rate = format.getSampleRate();
+        rampFrames = Math.max(1, (int) (rate * RAMP_SECONDS));
+        lookahead = Math.max(1, Math.min(maxFrames, (int) (rate * LOOKAHEAD_SECONDS)));
+        delay = new float[lookahead * channels];
+        delayedLimit = new float[lookahead];
+        windowLimit = new float[lookahead + 2];
+        windowFrame = new long[lookahead + 2];
+        attack = 1 - Math.exp(-4.0 / lookahead);
+        release = 1 - Math.exp(-1.0 / (rate * RELEASE_SECONDS));
+        reset();
+        return true;
+    }
+
+    boolean isActive() {
+        return codec != null;
+    }
+
+    // Number of frames output lags input by.
+    int latency() {
+        return lookahead;
+    }
+
+    // Clears the limiter history, e.g. after the line was flushed for a seek or a manual track change.
+    void reset() {
+        Arrays.fill(delay, 0f);
+        Arrays.fill(delayedLimit, 1f);
+        delayPos = 0;
+        windowHead = 0;
+        windowSize = 0;
+        frame = 0;
+        envelope = 1.0;
+    }
+
+    // Sets the gain in dB; a ramp avoids zipper noise when the user nudges the gain mid-track.
+    void setGain(double dB, boolean immediate) {
+        targetGain = Math.pow(10, dB / 20);
+        if (immediate) {
+            gain = targetGain;
+            gainStep = 0;
+        } else {
+            gainStep = (targetGain - gain) / rampFrames;
+        }
+    }
+
+    // Processes whole frames of buf in place. Output lags input by the look-ahead, so the caller has to
+    // write drain() before the line is drained or reopened.
+    void process(byte[] buf, int offset, int length) {
+        if (codec == null) {
+            return;
+        }
+        int count = codec.toFloats(buf, offset, length, samples);
+        // Outside of a ramp the gain is one multiply over the whole block
+        boolean steady = gainStep == 0;
+        if (steady) {
+            kernels.scale(samples, 0, count, (float) gain);
+        }
+        for (int i = 0; i < count; i += channels) {
+            if (!steady) {
+                gain += gainStep;
+                if ((gainStep > 0 && gain >= targetGain) || (gainStep < 0 && gain <= targetGain)) {
+                    gain = targetGain;
+                    gainStep = 0;
+                }
+            }
+            float peak = 0;
+            for (int c = 0; c < channels; c++) {
+                float x = steady ? samples[i + c] : (float) (samples[i + c] * gain);
+                samples[i + c] = x;
+                peak = Math.max(peak, Math.abs(x));
+            }
+            limit(i, peak > ceiling ? ceiling / peak : 1f);
+        }
+        codec.toBytes(samples, count, buf, offset);
+    }
+
+    // Pushes silence through the look-ahead and writes the remaining delayed frames into buf.
+    // Returns the number of bytes written.
+    int drain(byte[] buf, int offset) {
+        if (codec == null || frame == 0) {
+            return 0;
+        }
+        int frames = (int) Math.min(lookahead, frame);
+        for (int i = 0; i < frames * channels; i += channels) {
+            for (int c = 0; c < channels; c++) {
+                samples[i + c] = 0f;
+            }
+            limit(i, 1f);
+        }
+        codec.toBytes(samples, frames * channels, buf, offset);
+        reset();
+        return frames * codec.frameSize;
+    }
+
+    private void limit(int i, float required) {
+        // Sliding-window minimum over the frames still in the delay line plus the incoming one
+        while (windowSize > 0 && windowLimit[(windowHead + windowSize - 1) % windowLimit.length] >= required) {
+            windowSize--;
+        }
+        int tail = (windowHead + windowSize) % windowLimit.length;
+        windowLimit[tail] = required;
+        windowFrame[tail] = frame;
+        windowSize++;
+        while (windowFrame[windowHead] < frame - lookahead) {
+            windowHead = (windowHead + 1) % windowLimit.length;
+            windowSize--;
+        }
+        double target = windowLimit[windowHead];
+        envelope += (target - envelope) * (target < envelope ? attack : release);
+
+        // The delayed frame's own limit is a hard bound, so the envelope's smoothing can never let it clip
+        float applied = (float) Math.min(envelope, delayedLimit[delayPos]);
+        int base = delayPos * channels;
+        for (int c = 0; c < channels; c++) {
+            float out = delay[base + c];
+            delay[base + c] = samples[i + c];
+            samples[i + c] = out * applied;
+        }
+        delayedLimit[delayPos] = required;
+        delayPos = (delayPos + 1) % lookahead;
+        frame++;
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// On-disk cache of everything known about a folder: the directory listing (validated by directory mtime)
+// and per-file loudness, format, gain and content hash (validated by file size and mtime). The file is
+// read on first use, normally by the folder's scanner thread, so mounting another root costs no I/O.
+class LibraryIndex {
+    private static final int MAGIC = 0x57504958; // "WPIX"
+    // 2: directory listings include every format with a decoder, not just .wav
+    // 3: entries carry a content hash for duplicate detection
+    // 4: entries carry the true peak; version 3 files are still read, without it
+    private static final int VERSION = 4;
+    private static final Path INDEX_DIR = Path.of(System.getProperty("user.home"), ".wavplayer", "index");
+
+    static class Entry {
+        final long size;
+        final long modified;
+        boolean analyzed;
+        boolean manual;
+        float loudness;
+        float peak;
+        float duration;
+        float sampleRate;
+        short bits;
+        short channels;
+        float gain;
+        // 0 until measured
+        long hash;
+        // dBTP, NaN until measured
+        float truePeak = Float.NaN;
+        // Set by markSeen, for saveSeen; not saved
+        volatile boolean seen;
+
+        Entry(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private static class Dir {
+        final long modified;
+        final List<String> subdirs;
+
+        Dir(long modified, List<String> subdirs) {
+            this.modified = modified;
+            this.subdirs = subdirs;
+        }
+    }
+
+    final Path root;
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private Map<String, Dir> dirs = new ConcurrentHashMap<>();
+    private Map<String, Dir> previousDirs = Map.of();
+    private Map<String, List<String>> cachedFiles = Map.of();
+    private volatile boolean loaded = false;
+
+    private LibraryIndex(Path root) {
+        this.root = root;
+        String key = UUID.nameUUIDFromBytes(root.toString().getBytes(StandardCharsets.UTF_8)).toString();
+        this.indexFile = INDEX_DIR.resolve(key + ".idx");
+    }
+
+    static LibraryIndex open(File folder) {
+        return new LibraryIndex(folder.toPath().toAbsolutePath().normalize());
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                if (Files.isRegularFile(indexFile)) {
+                    try {
+                        read();
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Ignoring unreadable index " + indexFile + ": " + e.getMessage());
+                        entries.clear();
+                        dirs = new ConcurrentHashMap<>();
+                    }
+                }
+                loaded = true;
+            }
+        }
+    }
+
+    String key(File file) {
+        return root.relativize(file.toPath().toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+    }
+
+    Entry get(File file) {
+        ensureLoaded();
+        return entries.get(key(file));
+    }
+
+    // Returns the cached entry only if the file on disk still has the recorded size and mtime.
+    Entry getValid(File file) {
+        Entry entry = get(file);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (attributes.size() == entry.size && attributes.lastModifiedTime().toMillis() == entry.modified) {
+                return entry;
+            }
+        } catch (IOException e) {
+            // Treat unreadable files as changed
+        }
+        return null;
+    }
+
+    void put(File file, Entry entry) {
+        ensureLoaded();
+        Entry previous = entries.put(key(file), entry);
+        // A hash measured for the same version of the file stays valid
+        if (previous != null && entry.hash == 0 && previous.size == entry.size && previous.modified == entry.modified) {
+            entry.hash = previous.hash;
+        }
+    }
+
+    // Moves a file's measurements and gain to its new name. A rename keeps size and mtime, so they stay valid.
+    void rename(File from, File to) {
+        ensureLoaded();
+        Entry entry = entries.remove(key(from));
+        if (entry != null) {
+            entries.put(key(to), entry);
+        }
+    }
+
+    // Files with an entry anywhere below dir.
+    List<File> filesUnder(File dir) {
+        ensureLoaded();
+        String prefix = key(dir) + "/";
+        List<File> files = new ArrayList<>();
+        for (String path : entries.keySet()) {
+            if (path.startsWith(prefix)) {
+                files.add(root.resolve(path).toFile());
+            }
+        }
+        return files;
+    }
+
+    // Starts a new listing pass: directories recorded from now on replace the ones read from disk.
+    void beginScan() {
+        ensureLoaded();
+        cachedFiles = new HashMap<>();
+        for (String path : entries.keySet()) {
+            int slash = path.lastIndexOf('/');
+            cachedFiles.computeIfAbsent(slash < 0 ? "" : path.substring(0, slash), k -> new ArrayList<>()).add(path);
+        }
+        previousDirs = dirs;
+        dirs = new ConcurrentHashMap<>();
+    }
+
+    // Returns the subdirectories recorded for a directory whose mtime hasn't changed, adding its known files
+    // to files, or null if the directory has to be listed again.
+    List<String> cachedDir(String dirKey, long modified, List<File> files) {
+        Dir cached = previousDirs.get(dirKey);
+        if (cached == null || cached.modified != modified) {
+            return null;
+        }
+        for (String path : cachedFiles.getOrDefault(dirKey, List.of())) {
+            files.add(root.resolve(path).toFile());
+        }
+        return cached.subdirs;
+    }
+
+    // Called once the directory's files have been handed over, so a save never records a directory whose
+    // files haven't reached the library yet.
+    void recordDir(String dirKey, long modified, List<String> subdirs) {
+        dirs.put(dirKey, new Dir(modified, subdirs));
+    }
+
+    // Writes the index for exactly the given files; entries for files that disappeared are dropped.
+    void save(List<File> files) throws IOException {
+        save(files, true);
+    }
+
+    // Marks a file as still in the catalog, for saveSeen. Call it after any put for the file, which replaces
+    // the entry. A file without an entry gets one, as a listed file does in save.
+    void markSeen(File file) {
+        ensureLoaded();
+        String key = key(file);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                return;
+            }
+            Entry raced = entries.putIfAbsent(key, entry);
+            entry = raced != null ? raced : entry;
+        }
+        entry.seen = true;
+    }
+
+    // Writes the index for the files marked with markSeen; the others are dropped. Saves a catalog that was
+    // streamed through without anyone keeping a list of its files.
+    void saveSeen() throws IOException {
+        ensureLoaded();
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            count += entry.seen ? 1 : 0;
+        }
+        int seen = count;
+        write(dirs, out -> {
+            out.writeInt(seen);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().seen) {
+                    writeEntry(out, entry.getKey(), entry.getValue());
+                }
+            }
+        });
+    }
+
+    // Without withDirs no directory is recorded, so the next scan lists everything again. For saves during
+    // a scan, whose listed files may still be on their way to the library.
+    void save(List<File> files, boolean withDirs) throws IOException {
+        ensureLoaded();
+        // Every listed file needs an entry, otherwise an unchanged directory would lose it on the next scan
+        List<String> keys = new ArrayList<>(files.size());
+        for (File file : files) {
+            String key = key(file);
+            if (!entries.containsKey(key)) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                    entries.put(key, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                } catch (IOException e) {
+                    continue;
+                }
+            }
+            keys.add(key);
+        }
+        write(withDirs ? dirs : Map.of(), out -> {
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                writeEntry(out, key, entries.get(key));
+            }
+        });
+    }
+
+    private interface EntriesWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Writes the header and savedDirs, then lets entries write the count and the entries, next to the index
+    // file and then over it.
+    private void write(Map<String, Dir> savedDirs, EntriesWriter entries) throws IOException {
+        Files.createDirectories(INDEX_DIR);
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(savedDirs.size());
+            for (Map.Entry<String, Dir> dir : savedDirs.entrySet()) {
+                writeString(out, dir.getKey());
+                out.writeLong(dir.getValue().modified);
+                out.writeInt(dir.getValue().subdirs.size());
+                for (String subdir : dir.getValue().subdirs) {
+                    writeString(out, subdir);
+                }
+            }
+            entries.write(out);
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, Entry entry) throws IOException {
+        writeString(out, key);
+        out.writeLong(entry.size);
+        out.writeLong(entry.modified);
+        out.writeByte((entry.analyzed ? 1 : 0) | (entry.manual ? 2 : 0));
+        out.writeFloat(entry.loudness);
+        out.writeFloat(entry.peak);
+        out.writeFloat(entry.duration);
+        out.writeFloat(entry.sampleRate);
+        out.writeShort(entry.bits);
+        out.writeShort(entry.channels);
+        out.writeFloat(entry.gain);
+        out.writeLong(entry.hash);
+        out.writeFloat(entry.truePeak);
+    }
+
+    private void read() throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = in.getInt() == MAGIC ? in.getInt() : -1;
+            if (version != VERSION && version != 3) {
+                throw new IOException("not a version " + VERSION + " index");
+            }
+            int dirCount = in.getInt();
+            for (int i = 0; i < dirCount; i++) {
+                String key = readString(in);
+                long modified = in.getLong();
+                int subdirCount = in.getInt();
+                List<String> subdirs = new ArrayList<>(subdirCount);
+                for (int j = 0; j < subdirCount; j++) {
+                    subdirs.add(readString(in));
+                }
+                dirs.put(key, new Dir(modified, subdirs));
+            }
+            int entryCount = in.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = readString(in);
+                Entry entry = new Entry(in.getLong(), in.getLong());
+                int flags = in.get();
+                entry.analyzed = (flags & 1) != 0;
+                entry.manual = (flags & 2) != 0;
+                entry.loudness = in.getFloat();
+                entry.peak = in.getFloat();
+                entry.duration = in.getFloat();
+                entry.sampleRate = in.getFloat();
+                entry.bits = in.getShort();
+                entry.channels = in.getShort();
+                entry.gain = in.getFloat();
+                entry.hash = in.getLong();
+                if (version >= 4) {
+                    entry.truePeak = in.getFloat();
+                }
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Watches a library folder tree and reports what changed in it, so the track list can follow new renders,
+// deletions and renames without a rescan. Events are collected until the tree has been quiet for
+// QUIET_MILLIS (a file being written fires a stream of modifications) and then resolved against the
+// disk in one batch on the watcher's own thread.
+//
+// A file that disappears while a new one with the same size and mtime appears is reported as a rename,
+// which covers renames and moves within the tree; the gain then carries over.
+class LibraryWatcher {
+    private static final long QUIET_MILLIS = 1000;
+    // Flush at least this often while the tree keeps changing, e.g. during a long copy
+    private static final long MAX_DELAY_MILLIS = 10_000;
+
+    // Resolved changes. changed holds audio files that were created or written, removed holds files and
+    // directories that are gone and renamed maps old names to new ones; apply renames first, as a renamed
+    // directory is also in removed. rescanned holds directories whose events were lost to an overflow, so
+    // any track in them may have disappeared.
+    static class Changes {
+        final List<File> changed = new ArrayList<>();
+        final Set<File> removed = new LinkedHashSet<>();
+        final Map<File, File> renamed = new LinkedHashMap<>();
+        final List<File> rescanned = new ArrayList<>();
+
+        boolean isEmpty() {
+            return changed.isEmpty() && removed.isEmpty() && renamed.isEmpty() && rescanned.isEmpty();
+        }
+    }
+
+    private final LibraryIndex index;
+    private final Consumer<Changes> onChanges;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Map<Path, WatchKey> dirs = new HashMap<>();
+    // Paths touched since the last flush, resolved against the disk when the tree goes quiet
+    private final Set<Path> touched = new LinkedHashSet<>();
+    private final Set<Path> overflowed = new LinkedHashSet<>();
+    private volatile WatchService watcher;
+    private Thread thread;
+    private volatile boolean cancelled = false;
+
+    LibraryWatcher(LibraryIndex index, Consumer<Changes> onChanges) {
+        this.index = index;
+        this.onChanges = onChanges;
+    }
+
+    void start() {
+        thread = new Thread(this::run, "library-watcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    void cancel() {
+        cancelled = true;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            watcher = index.root.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (cancelled) {
+            cancel();
+            return;
+        }
+        long firstEvent = 0;
+        long lastEvent = 0;
+        try {
+            register(index.root, null);
+            while (!cancelled) {
+                WatchKey key;
+                if (touched.isEmpty() && overflowed.isEmpty()) {
+                    key = watcher.take();
+                } else {
+                    long now = System.currentTimeMillis();
+                    long wait = Math.min(lastEvent + QUIET_MILLIS, firstEvent + MAX_DELAY_MILLIS) - now;
+                    key = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (key == null) {
+                        flush();
+                        continue;
+                    }
+                }
+                if (touched.isEmpty() && overflowed.isEmpty()) {
+                    firstEvent = System.currentTimeMillis();
+                }
+                lastEvent = System.currentTimeMillis();
+                handle(key);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Cancelled
+        }
+    }
+
+    private void handle(WatchKey key) {
+        Path dir = keys.get(key);
+        if (dir != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflowed.add(dir);
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                touched.add(path);
+                // Files moved in along with a directory fire no events of their own
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                    register(path, touched);
+                }
+            }
+        }
+        if (!key.reset()) {
+            unregister(key);
+        }
+    }
+
+    // Watches dir and everything below it. Files found on the way are added to files, if given.
+    private void register(Path dir, Set<Path> files) {
+        try {
+            Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                    if (cancelled) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (dirs.containsKey(path)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    try {
+                        WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                        keys.put(key, path);
+                        dirs.put(path, key);
+                    } catch (IOException e) {
+                        // Typically the OS limit on watches; the rest of the tree still gets watched where it can
+                        System.out.println("Not watching " + path + ": " + e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (files != null && attributes.isRegularFile()) {
+                        files.add(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    // Symlinks back into the tree end up here and are skipped, as in FolderScanner
+                    if (!(e instanceof FileSystemLoopException)) {
+                        System.out.println("Not watching " + path + ": " + e.getMessage());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void unregister(WatchKey key) {
+        Path dir = keys.remove(key);
+        if (dir != null) {
+            dirs.remove(dir);
+        }
+    }
+
+    private void flush() {
+        Changes changes = new Changes();
+        for (Path dir : overflowed) {
+            changes.rescanned.add(dir.toFile());
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    touched.add(child);
+                }
+            } catch (IOException e) {
+                // Gone as well; its own delete event covers it
+            }
+        }
+        overflowed.clear();
+
+        List<File> appeared = new ArrayList<>();
+        for (Path path : touched) {
+            if (Files.isDirectory(path)) {
+                continue;
+            }
+            if (Files.isRegularFile(path)) {
+                if (AudioDecoders.isAudioFile(path)) {
+                    changes.changed.add(path.toFile());
+                    if (index.get(path.toFile()) == null) {
+                        appeared.add(path.toFile());
+                    }
+                }
+            } else if (dirs.containsKey(path)) {
+                changes.removed.add(path.toFile());
+                cancelTree(path);
+            } else if (AudioDecoders.isAudioFile(path) && !Files.exists(path)) {
+                changes.removed.add(path.toFile());
+            }
+        }
+        touched.clear();
+        pairRenames(changes, appeared);
+        if (!changes.isEmpty() && !cancelled) {
+            onChanges.accept(changes);
+        }
+    }
+
+    // Stops watching a directory that is gone, along with everything that was below it.
+    private void cancelTree(Path gone) {
+        List<Path> below = new ArrayList<>();
+        for (Path dir : dirs.keySet()) {
+            if (dir.startsWith(gone)) {
+                below.add(dir);
+            }
+        }
+        for (Path dir : below) {
+            WatchKey key = dirs.remove(dir);
+            keys.remove(key);
+            key.cancel();
+        }
+    }
+
+    // A rename keeps the size and mtime, which the index recorded for the old name. A directory that went
+    // away only reports itself, so the files the index knows below it are matched as well. Moves keep the
+    // file name, so same-named files are paired first; copies of one file can share size and mtime.
+    private void pairRenames(Changes changes, List<File> appeared) {
+        if (appeared.isEmpty() || changes.removed.isEmpty()) {
+            return;
+        }
+        List<File> gone = new ArrayList<>();
+        for (File path : changes.removed) {
+            if (AudioDecoders.isAudioFile(path.toPath())) {
+                gone.add(path);
+            } else {
+                gone.addAll(index.filesUnder(path));
+            }
+        }
+        Set<File> remaining = new LinkedHashSet<>(appeared);
+        for (boolean sameName : new boolean[]{true, false}) {
+            Map<List<Object>, File> bySignature = new HashMap<>();
+            for (File file : remaining) {
+                bySignature.put(signature(file.getName(), file.length(), file.lastModified(), sameName), file);
+            }
+            for (File old : gone) {
+                LibraryIndex.Entry entry = index.get(old);
+                File renamed = entry == null || changes.renamed.containsKey(old) ? null
+                        : bySignature.remove(signature(old.getName(), entry.size, entry.modified, sameName));
+                if (renamed != null) {
+                    changes.renamed.put(old, renamed);
+                    remaining.remove(renamed);
+                }
+            }
+        }
+        // A directory stays removed; the tracks that moved out of it are renamed before it is cleared
+        changes.removed.removeAll(changes.renamed.keySet());
+        changes.changed.removeAll(changes.renamed.values());
+    }
+
+    private static List<Object> signature(String name, long size, long modified, boolean withName) {
+        return withName ? List.of(name, size, modified) : List.of(size, modified);
+    }
+}
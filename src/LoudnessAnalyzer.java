@@ -0,0 +1,297 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Measures integrated loudness (ITU-R BS.1770 / EBU R128 gating), sample peak and true peak of a file
+// and turns it into the gain that brings the file to TARGET_LOUDNESS. The same pass over the samples
+// also writes the file's waveform peaks, so thumbnails are ready once a library has been analyzed.
+class LoudnessAnalyzer {
+    static final double TARGET_LOUDNESS = -18.0;
+    static final double SILENCE = -70.0;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    static class Result {
+        final File file;
+        final double loudness;
+        final double peak;
+        final double truePeak;
+        final double duration;
+        final double gain;
+        final AudioFormat format;
+        long size;
+        long modified;
+        boolean replacesStale;
+        PeakFile peaks;
+
+        Result(File file, double loudness, double peak, double truePeak, double duration, AudioFormat format) {
+            this.file = file;
+            this.loudness = loudness;
+            this.peak = peak;
+            this.truePeak = truePeak;
+            this.duration = duration;
+            this.format = format;
+            this.gain = gainFor(loudness);
+        }
+
+        LibraryIndex.Entry toEntry() {
+            LibraryIndex.Entry entry = new LibraryIndex.Entry(size, modified);
+            entry.analyzed = true;
+            entry.loudness = (float) loudness;
+            entry.peak = (float) peak;
+            entry.truePeak = (float) truePeak;
+            entry.duration = (float) duration;
+            entry.sampleRate = format.getSampleRate();
+            entry.bits = (short) format.getSampleSizeInBits();
+            entry.channels = (short) format.getChannels();
+            entry.gain = (float) gain;
+            return entry;
+        }
+    }
+
+    private final Function<File, LibraryIndex> indexes;
+    private final Consumer<Result> onResult;
+    private final AtomicInteger done = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private int total = 0;
+
+    // indexes maps a file to the index of the root it belongs to, or null.
+    LoudnessAnalyzer(Function<File, LibraryIndex> indexes, Consumer<Result> onResult) {
+        this.indexes = indexes;
+        this.onResult = onResult;
+    }
+
+    // Queues every file on the shared pool; onResult is called from worker threads as files finish.
+    // Files the index already has valid measurements for are skipped without being opened; ones measured
+    // before true peak was are decoded once more.
+    void submit(List<File> files) {
+        total += files.size();
+        for (File file : files) {
+            POOL.execute(() -> {
+                if (cancelled) {
+                    return;
+                }
+                try {
+                    boolean stale = false;
+                    LibraryIndex index = indexes.apply(file);
+                    if (index != null) {
+                        LibraryIndex.Entry cached = index.getValid(file);
+                        if (cached != null && cached.analyzed && !Float.isNaN(cached.truePeak)) {
+                            return;
+                        }
+                        stale = cached == null && index.get(file) != null;
+                    }
+                    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                    Result result = analyze(file, true);
+                    savePeaks(file, result.peaks, attributes);
+                    result.size = attributes.size();
+                    result.modified = attributes.lastModifiedTime().toMillis();
+                    result.replacesStale = stale;
+                    if (!cancelled) {
+                        onResult.accept(result);
+                    }
+                } catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+                    System.out.println(file + ": " + e.getMessage());
+                } finally {
+                    done.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    int getDone() {
+        return done.get();
+    }
+
+    int getTotal() {
+        return total;
+    }
+
+    static double gainFor(double loudness) {
+        if (loudness <= SILENCE) {
+            return 0;
+        }
+        return Math.round((TARGET_LOUDNESS - loudness) * 10) / 10.0;
+    }
+
+    private static void savePeaks(File file, PeakFile peaks, BasicFileAttributes attributes) {
+        try {
+            peaks.save(file, attributes);
+        } catch (IOException e) {
+            System.out.println(file + ": peaks not saved: " + e.getMessage());
+        }
+    }
+
+    static Result analyze(File file) throws UnsupportedAudioFileException, IOException {
+        return analyze(file, false);
+    }
+
+    static Result analyze(File file, boolean withPeaks) throws UnsupportedAudioFileException, IOException {
+        try (AudioInputStream in = PcmCodec.openPcm(file)) {
+            PcmCodec codec = new PcmCodec(in.getFormat());
+            Meter meter = new Meter(in.getFormat());
+            TruePeakMeter truePeak = new TruePeakMeter(codec.channels);
+            PeakFile.Builder peaks = withPeaks ? new PeakFile.Builder(codec.channels) : null;
+            byte[] buffer = new byte[codec.frameSize * 4096];
+            float[] samples = new float[codec.channels * 4096];
+            int carry = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer, carry, buffer.length - carry)) != -1) {
+                int available = carry + bytesRead;
+                int whole = available - available % codec.frameSize;
+                int count = codec.toFloats(buffer, 0, whole, samples);
+                meter.process(samples, count);
+                truePeak.process(samples, count);
+                if (peaks != null) {
+                    peaks.process(samples, count);
+                }
+                carry = available - whole;
+                System.arraycopy(buffer, whole, buffer, 0, carry);
+            }
+            Result result = new Result(file, meter.loudness(), meter.peak(), truePeak.truePeak(),
+                    meter.frames / (double) in.getFormat().getSampleRate(), in.getFormat());
+            result.peaks = peaks == null ? null : peaks.build();
+            return result;
+        }
+    }
+
+    // K-weighted energy meter with 400 ms blocks on a 100 ms hop.
+    static class Meter {
+        private final int channels;
+        private final double[] weights;
+        private final double[][] state;
+        private final double[] shelf = new double[5];
+        private final double[] highPass = new double[5];
+        private final int hop;
+        private double hopEnergy = 0;
+        private int hopFrames = 0;
+        private double[] hops = new double[256];
+        private int hopCount = 0;
+        private double totalEnergy = 0;
+        private double peak = 0;
+        long frames = 0;
+
+        Meter(AudioFormat format) {
+            double rate = format.getSampleRate();
+            channels = format.getChannels();
+            weights = new double[channels];
+            Arrays.fill(weights, 1.0);
+            if (channels == 6) {
+                weights[3] = 0.0;
+                weights[4] = 1.41;
+                weights[5] = 1.41;
+            }
+            state = new double[channels][8];
+            hop = Math.max(1, (int) Math.round(rate / 10));
+
+            double k = Math.tan(Math.PI * 1681.974450955533 / rate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10, 3.999843853973347 / 20);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1 + k / q + k * k;
+            shelf[0] = (vh + vb * k / q + k * k) / a0;
+            shelf[1] = 2 * (k * k - vh) / a0;
+            shelf[2] = (vh - vb * k / q + k * k) / a0;
+            shelf[3] = 2 * (k * k - 1) / a0;
+            shelf[4] = (1 - k / q + k * k) / a0;
+
+            k = Math.tan(Math.PI * 38.13547087602444 / rate);
+            q = 0.5003270373238773;
+            a0 = 1 + k / q + k * k;
+            highPass[0] = 1;
+            highPass[1] = -2;
+            highPass[2] = 1;
+            highPass[3] = 2 * (k * k - 1) / a0;
+            highPass[4] = (1 - k / q + k * k) / a0;
+        }
+
+        void process(float[] samples, int count) {
+            for (int i = 0; i < count; i += channels) {
+                double energy = 0;
+                for (int c = 0; c < channels; c++) {
+                    double x = samples[i + c];
+                    double abs = Math.abs(x);
+                    if (abs > peak) {
+                        peak = abs;
+                    }
+                    double[] s = state[c];
+                    double y = biquad(shelf, s, 0, x);
+                    y = biquad(highPass, s, 4, y);
+                    energy += weights[c] * y * y;
+                }
+                hopEnergy += energy;
+                totalEnergy += energy;
+                frames++;
+                if (++hopFrames == hop) {
+                    if (hopCount == hops.length) {
+                        hops = Arrays.copyOf(hops, hopCount * 2);
+                    }
+                    hops[hopCount++] = hopEnergy / hop;
+                    hopEnergy = 0;
+                    hopFrames = 0;
+                }
+            }
+        }
+
+        private static double biquad(double[] c, double[] s, int o, double x) {
+            double y = c[0] * x + c[1] * s[o] + c[2] * s[o + 1] - c[3] * s[o + 2] - c[4] * s[o + 3];
+            s[o + 1] = s[o];
+            s[o] = x;
+            s[o + 3] = s[o + 2];
+            s[o + 2] = y;
+            return y;
+        }
+
+        double peak() {
+            return peak > 0 ? 20 * Math.log10(peak) : Double.NEGATIVE_INFINITY;
+        }
+
+        double loudness() {
+            if (hopCount < 4) {
+                return frames > 0 ? toLufs(totalEnergy / frames) : Double.NEGATIVE_INFINITY;
+            }
+            int blockCount = hopCount - 3;
+            double[] blocks = new double[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i] = (hops[i] + hops[i + 1] + hops[i + 2] + hops[i + 3]) / 4;
+            }
+            double absoluteGate = fromLufs(SILENCE);
+            double relativeGate = fromLufs(toLufs(gatedMean(blocks, absoluteGate)) - 10);
+            return toLufs(gatedMean(blocks, Math.max(absoluteGate, relativeGate)));
+        }
+
+        private static double gatedMean(double[] blocks, double gate) {
+            double sum = 0;
+            int count = 0;
+            for (double block : blocks) {
+                if (block > gate) {
+                    sum += block;
+                    count++;
+                }
+            }
+            return count > 0 ? sum / count : 0;
+        }
+
+        private static double toLufs(double energy) {
+            return energy > 0 ? -0.691 + 10 * Math.log10(energy) : Double.NEGATIVE_INFINITY;
+        }
+
+        private static double fromLufs(double lufs) {
+            return Math.pow(10, (lufs + 0.691) / 10);
+        }
+    }
+}
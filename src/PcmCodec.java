@@ -0,0 +1,210 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+
+// Converts interleaved PCM bytes to floats in [-1, 1] and back. Not thread safe: it keeps a scratch buffer.
+class PcmCodec {
+    final AudioFormat format;
+    final int bytesPerSample;
+    final int channels;
+    final int frameSize;
+    private final boolean bigEndian;
+    private final boolean unsigned;
+    private final boolean floating;
+    private final SampleKernels kernels = SampleKernels.get();
+    private int[] values = new int[0];
+
+    PcmCodec(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding)
+                && !AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)
+                && !AudioFormat.Encoding.PCM_FLOAT.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+        this.format = format;
+        this.bytesPerSample = (format.getSampleSizeInBits() + 7) / 8;
+        this.channels = format.getChannels();
+        this.frameSize = bytesPerSample * channels;
+        this.bigEndian = format.isBigEndian();
+        this.unsigned = AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding);
+        this.floating = AudioFormat.Encoding.PCM_FLOAT.equals(encoding);
+        if (floating ? bytesPerSample != 4 && bytesPerSample != 8 : bytesPerSample < 1 || bytesPerSample > 4) {
+            throw new IllegalArgumentException("Unsupported sample size: " + format.getSampleSizeInBits());
+        }
+    }
+
+    static boolean isSupported(AudioFormat format) {
+        try {
+            new PcmCodec(format);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    // Opens any file a decoder is installed for as a stream this codec can handle.
+    static AudioInputStream openPcm(File file) throws UnsupportedAudioFileException, IOException {
+        return AudioDecoders.open(file);
+    }
+
+    // Converts a-law/u-law and compressed encodings to 16-bit PCM.
+    static AudioInputStream toPcm(AudioInputStream in) {
+        AudioFormat format = in.getFormat();
+        AudioFormat target = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+                format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+        return AudioSystem.getAudioInputStream(target, in);
+    }
+
+    // Decodes whole frames from src into dst and returns the number of samples written.
+    int toFloats(byte[] src, int offset, int length, float[] dst) {
+        int samples = (length / frameSize) * channels;
+        if (floating) {
+            int pos = offset;
+            for (int i = 0; i < samples; i++) {
+                dst[i] = (float) read(src, pos);
+                pos += bytesPerSample;
+            }
+            return samples;
+        }
+        int[] values = values(samples);
+        unpack(src, offset, samples, values);
+        kernels.toFloats(values, dst, samples, 1f / (1L << (bytesPerSample * 8 - 1)));
+        return samples;
+    }
+
+    // Encodes samples into dst, clamping to full scale.
+    void toBytes(float[] src, int samples, byte[] dst, int offset) {
+        toBytes(src, samples, dst, offset, null);
+    }
+
+    // As above, adding dither (in LSBs, one value per sample) before integer samples are rounded.
+    void toBytes(float[] src, int samples, byte[] dst, int offset, float[] dither) {
+        if (floating) {
+            int pos = offset;
+            for (int i = 0; i < samples; i++) {
+                write(src[i], dst, pos);
+                pos += bytesPerSample;
+            }
+            return;
+        }
+        int[] values = values(samples);
+        kernels.quantize(src, dither, values, samples, bytesPerSample * 8);
+        pack(values, samples, dst, offset);
+    }
+
+    // Sizes the scratch buffer so conversions of up to frames frames never allocate.
+    void reserve(int frames) {
+        values(frames * channels);
+    }
+
+    private int[] values(int samples) {
+        if (values.length < samples) {
+            values = new int[samples];
+        }
+        return values;
+    }
+
+    // Byte unpacking stays scalar; the common little-endian layouts get their own loops.
+    private void unpack(byte[] b, int pos, int samples, int[] dst) {
+        if (!bigEndian && !unsigned && bytesPerSample == 2) {
+            for (int i = 0; i < samples; i++, pos += 2) {
+                dst[i] = (b[pos] & 0xFF) | (b[pos + 1] << 8);
+            }
+        } else if (!bigEndian && !unsigned && bytesPerSample == 3) {
+            for (int i = 0; i < samples; i++, pos += 3) {
+                dst[i] = (b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8) | (b[pos + 2] << 16);
+            }
+        } else {
+            int bits = bytesPerSample * 8;
+            for (int i = 0; i < samples; i++, pos += bytesPerSample) {
+                int value = 0;
+                for (int k = 0; k < bytesPerSample; k++) {
+                    int shift = bigEndian ? (bytesPerSample - 1 - k) * 8 : k * 8;
+                    value |= (b[pos + k] & 0xFF) << shift;
+                }
+                if (unsigned) {
+                    value -= 1 << (bits - 1);
+                } else if (bits < 32) {
+                    value = (value << (32 - bits)) >> (32 - bits);
+                }
+                dst[i] = value;
+            }
+        }
+    }
+
+    private void pack(int[] src, int samples, byte[] b, int pos) {
+        if (!bigEndian && !unsigned && bytesPerSample == 2) {
+            for (int i = 0; i < samples; i++, pos += 2) {
+                b[pos] = (byte) src[i];
+                b[pos + 1] = (byte) (src[i] >> 8);
+            }
+        } else if (!bigEndian && !unsigned && bytesPerSample == 3) {
+            for (int i = 0; i < samples; i++, pos += 3) {
+                b[pos] = (byte) src[i];
+                b[pos + 1] = (byte) (src[i] >> 8);
+                b[pos + 2] = (byte) (src[i] >> 16);
+            }
+        } else {
+            int offset = unsigned ? 1 << (bytesPerSample * 8 - 1) : 0;
+            for (int i = 0; i < samples; i++, pos += bytesPerSample) {
+                int value = src[i] + offset;
+                for (int k = 0; k < bytesPerSample; k++) {
+                    int shift = bigEndian ? (bytesPerSample - 1 - k) * 8 : k * 8;
+                    b[pos + k] = (byte) (value >>> shift);
+                }
+            }
+        }
+    }
+
+    double read(byte[] b, int pos) {
+        if (floating) {
+            long bits = 0;
+            for (int i = 0; i < bytesPerSample; i++) {
+                int shift = bigEndian ? (bytesPerSample - 1 - i) * 8 : i * 8;
+                bits |= (b[pos + i] & 0xFFL) << shift;
+            }
+            return bytesPerSample == 4 ? Float.intBitsToFloat((int) bits) : Double.longBitsToDouble(bits);
+        }
+        int value = 0;
+        for (int i = 0; i < bytesPerSample; i++) {
+            int shift = bigEndian ? (bytesPerSample - 1 - i) * 8 : i * 8;
+            value |= (b[pos + i] & 0xFF) << shift;
+        }
+        int bits = bytesPerSample * 8;
+        if (unsigned) {
+            value -= 1 << (bits - 1);
+        } else if (bits < 32) {
+            value = (value << (32 - bits)) >> (32 - bits);
+        }
+        return value / (double) (1L << (bits - 1));
+    }
+
+    void write(double sample, byte[] b, int pos) {
+        if (sample > 1.0) {
+            sample = 1.0;
+        } else if (sample < -1.0) {
+            sample = -1.0;
+        }
+        long bits;
+        if (floating) {
+            bits = bytesPerSample == 4 ? Float.floatToRawIntBits((float) sample) & 0xFFFFFFFFL : Double.doubleToRawLongBits(sample);
+        } else {
+            long full = 1L << (bytesPerSample * 8 - 1);
+            long value = Math.round(sample * full);
+            if (value > full - 1) {
+                value = full - 1;
+            }
+            if (unsigned) {
+                value += full;
+            }
+            bits = value;
+        }
+        for (int i = 0; i < bytesPerSample; i++) {
+            int shift = bigEndian ? (bytesPerSample - 1 - i) * 8 : i * 8;
+            b[pos + i] = (byte) (bits >>> shift);
+        }
+    }
+}
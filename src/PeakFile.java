@@ -0,0 +1,260 @@
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+// Min/max/RMS envelope of a track at several resolutions, in the spirit of REAPER's .reapeaks: level 0
+// has one block per BLOCK_FRAMES frames and every further level merges LEVEL_FACTOR blocks, so a drawing
+// of any width reads a few hundred blocks at most. Values are stored as bytes, which is all a thumbnail
+// can show, and the file is cached under ~/.wavplayer/peaks, validated by the track's size and mtime.
+class PeakFile {
+    private static final int MAGIC = 0x5750504B; // "WPPK"
+    private static final int VERSION = 1;
+    private static final Path PEAK_DIR = Path.of(System.getProperty("user.home"), ".wavplayer", "peaks");
+    static final int BLOCK_FRAMES = 4096;
+    static final int LEVEL_FACTOR = 4;
+    // Coarser levels stop once a level has no more blocks than this
+    private static final int MIN_BLOCKS = 128;
+
+    final long frames;
+    // Per level, one byte per block: min and max as signed full scale / 127, RMS as full scale / 255
+    final byte[][] min;
+    final byte[][] max;
+    final byte[][] rms;
+
+    private PeakFile(long frames, byte[][] min, byte[][] max, byte[][] rms) {
+        this.frames = frames;
+        this.min = min;
+        this.max = max;
+        this.rms = rms;
+    }
+
+    int levels() {
+        return min.length;
+    }
+
+    int blocks(int level) {
+        return min[level].length;
+    }
+
+    static int blockFrames(int level) {
+        int frames = BLOCK_FRAMES;
+        for (int i = 0; i < level; i++) {
+            frames *= LEVEL_FACTOR;
+        }
+        return frames;
+    }
+
+    // The coarsest level that still has at least one block per pixel.
+    int levelFor(int width) {
+        int level = 0;
+        while (level + 1 < levels() && blocks(level + 1) >= width) {
+            level++;
+        }
+        return level;
+    }
+
+    // Collects level 0 from interleaved float samples as a file is decoded.
+    static class Builder {
+        private final int channels;
+        private float blockMin = 0;
+        private float blockMax = 0;
+        private double blockSquares = 0;
+        private int blockFrames = 0;
+        private long frames = 0;
+        private byte[] min = new byte[256];
+        private byte[] max = new byte[256];
+        private byte[] rms = new byte[256];
+        private int count = 0;
+
+        Builder(int channels) {
+            this.channels = channels;
+        }
+
+        void process(float[] samples, int count) {
+            for (int i = 0; i < count; i += channels) {
+                for (int c = 0; c < channels; c++) {
+                    float x = samples[i + c];
+                    if (x < blockMin) {
+                        blockMin = x;
+                    }
+                    if (x > blockMax) {
+                        blockMax = x;
+                    }
+                    blockSquares += x * x;
+                }
+                frames++;
+                if (++blockFrames == BLOCK_FRAMES) {
+                    endBlock();
+                }
+            }
+        }
+
+        PeakFile build() {
+            if (blockFrames > 0) {
+                endBlock();
+            }
+            List<byte[]> mins = new ArrayList<>();
+            List<byte[]> maxes = new ArrayList<>();
+            List<byte[]> rmsLevels = new ArrayList<>();
+            byte[] levelMin = Arrays.copyOf(min, count);
+            byte[] levelMax = Arrays.copyOf(max, count);
+            byte[] levelRms = Arrays.copyOf(rms, count);
+            while (true) {
+                mins.add(levelMin);
+                maxes.add(levelMax);
+                rmsLevels.add(levelRms);
+                if (levelMin.length <= MIN_BLOCKS) {
+                    break;
+                }
+                int next = (levelMin.length + LEVEL_FACTOR - 1) / LEVEL_FACTOR;
+                byte[] nextMin = new byte[next];
+                byte[] nextMax = new byte[next];
+                byte[] nextRms = new byte[next];
+                for (int b = 0; b < next; b++) {
+                    int from = b * LEVEL_FACTOR;
+                    int to = Math.min(from + LEVEL_FACTOR, levelMin.length);
+                    byte lo = Byte.MAX_VALUE;
+                    byte hi = Byte.MIN_VALUE;
+                    double sum = 0;
+                    for (int i = from; i < to; i++) {
+                        lo = (byte) Math.min(lo, levelMin[i]);
+                        hi = (byte) Math.max(hi, levelMax[i]);
+                        double r = (levelRms[i] & 0xff) / 255.0;
+                        sum += r * r;
+                    }
+                    nextMin[b] = lo;
+                    nextMax[b] = hi;
+                    nextRms[b] = (byte) Math.round(Math.sqrt(sum / (to - from)) * 255);
+                }
+                levelMin = nextMin;
+                levelMax = nextMax;
+                levelRms = nextRms;
+            }
+            return new PeakFile(frames, mins.toArray(new byte[0][]), maxes.toArray(new byte[0][]), rmsLevels.toArray(new byte[0][]));
+        }
+
+        private void endBlock() {
+            if (count == min.length) {
+                min = Arrays.copyOf(min, count * 2);
+                max = Arrays.copyOf(max, count * 2);
+                rms = Arrays.copyOf(rms, count * 2);
+            }
+            // Rounded outwards, so a clipped block still reads full scale
+            min[count] = (byte) Math.max(-127, Math.floor(blockMin * 127));
+            max[count] = (byte) Math.min(127, Math.ceil(blockMax * 127));
+            rms[count] = (byte) Math.min(255, Math.round(Math.sqrt(blockSquares / (blockFrames * channels)) * 255));
+            count++;
+            blockMin = 0;
+            blockMax = 0;
+            blockSquares = 0;
+            blockFrames = 0;
+        }
+    }
+
+    // Returns the cached peaks, or decodes the file and caches them if there are none for this version of it.
+    static PeakFile get(File file) throws UnsupportedAudioFileException, IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        PeakFile cached = load(file, attributes);
+        if (cached != null) {
+            return cached;
+        }
+        PeakFile peaks = generate(file);
+        peaks.save(file, attributes);
+        return peaks;
+    }
+
+    static PeakFile generate(File file) throws UnsupportedAudioFileException, IOException {
+        try (AudioInputStream in = PcmCodec.openPcm(file)) {
+            PcmCodec codec = new PcmCodec(in.getFormat());
+            Builder builder = new Builder(codec.channels);
+            byte[] buffer = new byte[codec.frameSize * 4096];
+            float[] samples = new float[codec.channels * 4096];
+            int carry = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer, carry, buffer.length - carry)) != -1) {
+                int available = carry + bytesRead;
+                int whole = available - available % codec.frameSize;
+                builder.process(samples, codec.toFloats(buffer, 0, whole, samples));
+                carry = available - whole;
+                System.arraycopy(buffer, whole, buffer, 0, carry);
+            }
+            return builder.build();
+        }
+    }
+
+    // Returns null if there is no peak file for the file as it is on disk now.
+    static PeakFile load(File file, BasicFileAttributes attributes) {
+        Path path = pathOf(file);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = ByteBuffer.allocate((int) channel.size());
+            while (in.hasRemaining() && channel.read(in) != -1) {
+                // Small enough to read whole
+            }
+            in.flip();
+            if (in.getInt() != MAGIC || in.getInt() != VERSION
+                    || in.getLong() != attributes.size() || in.getLong() != attributes.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            long frames = in.getLong();
+            int levels = in.getInt();
+            byte[][] min = new byte[levels][];
+            byte[][] max = new byte[levels][];
+            byte[][] rms = new byte[levels][];
+            for (int level = 0; level < levels; level++) {
+                int blocks = in.getInt();
+                min[level] = new byte[blocks];
+                max[level] = new byte[blocks];
+                rms[level] = new byte[blocks];
+                in.get(min[level]).get(max[level]).get(rms[level]);
+            }
+            return new PeakFile(frames, min, max, rms);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable peak file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void save(File file, BasicFileAttributes attributes) throws IOException {
+        Files.createDirectories(PEAK_DIR);
+        Path path = pathOf(file);
+        Path temp = Files.createTempFile(PEAK_DIR, path.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(attributes.size());
+            out.writeLong(attributes.lastModifiedTime().toMillis());
+            out.writeLong(frames);
+            out.writeInt(levels());
+            for (int level = 0; level < levels(); level++) {
+                out.writeInt(blocks(level));
+                out.write(min[level]);
+                out.write(max[level]);
+                out.write(rms[level]);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path pathOf(File file) {
+        String absolute = file.toPath().toAbsolutePath().normalize().toString();
+        return PEAK_DIR.resolve(UUID.nameUUIDFromBytes(absolute.getBytes(StandardCharsets.UTF_8)) + ".pk");
+    }
+}
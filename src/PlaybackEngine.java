@@ -0,0 +1,555 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.FloatControl;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
+
+// Plays tracks through a single SourceDataLine that stays open while consecutive tracks share a format.
+// The next track is opened and buffered while the current one plays, so natural transitions are gapless.
+//
+// All line and track state is owned by one long-lived audio thread. Other threads only offer commands
+// to a lock-free queue and read the volatile status fields, so a burst of key presses costs a few queue
+// offers and never touches the line directly.
+class PlaybackEngine {
+    interface Playlist {
+        int size();
+
+        File file(int index);
+
+        double gain(int index);
+
+        // Called on the audio thread whenever a track starts feeding the line.
+        void trackStarted(int index);
+
+        // Called on the audio thread when the last track of the list has been played out.
+        void playlistEnded();
+    }
+
+    private interface Command {
+        void run() throws Exception;
+    }
+
+    static final int FOLLOW_TRACK = 0;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long IDLE_WAIT_NANOS = 1_000_000;
+
+    private final Playlist playlist;
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+    private final Thread audioThread;
+    private final ThreadPoolExecutor decoder = (ThreadPoolExecutor) Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "decoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    final PlaybackStats stats = new PlaybackStats(decoder::getActiveCount);
+
+    private volatile int index = -1;
+    private volatile boolean paused = false;
+    private volatile long framePosition = 0;
+    private volatile long frameLength = AudioSystem.NOT_SPECIFIED;
+    private volatile float frameRate = AudioSystem.NOT_SPECIFIED;
+    private volatile int queuedFrames = 0;
+
+    // Owned by the audio thread
+    private SourceDataLine line;
+    private TrackStream track;
+    private TrackStream prefetched;
+    private boolean trackReady = false;
+    private byte[] buffer = new byte[0];
+    private int chunkFrames = CHUNK_FRAMES;
+    private Mixer.Info mixer = null;
+    // Fixed line format that every track is converted to, or null to open the line in each track's format
+    private AudioFormat outputFormat = null;
+    private final AdaptiveBuffer lineBuffer = new AdaptiveBuffer();
+    // True once the line has been fed since the last flush, so running dry counts as an underrun
+    private boolean primed = false;
+    // Set when an underrun has been counted, until audio flows again
+    private boolean dry = false;
+    // Set when a decoder stall has been counted, until the decoder delivers again
+    private boolean starved = false;
+    private final GainStage gainStage = new GainStage();
+
+    PlaybackEngine(Playlist playlist) {
+        this.playlist = playlist;
+        audioThread = new Thread(this::run, "audio");
+        audioThread.setDaemon(true);
+        audioThread.setPriority(Thread.MAX_PRIORITY);
+        audioThread.start();
+    }
+
+    void play(int trackIndex) {
+        play(trackIndex, 0);
+    }
+
+    // Starts the track at frame, e.g. where a restored session left it.
+    void play(int trackIndex, long frame) {
+        stats.switchRequested();
+        offer(() -> start(trackIndex, Math.max(0, frame)));
+    }
+
+    void next() {
+        stats.switchRequested();
+        offer(() -> {
+            if (index >= 0 && index < playlist.size() - 1) {
+                start(index + 1, 0);
+            }
+        });
+    }
+
+    void previous() {
+        stats.switchRequested();
+        offer(() -> {
+            if (index > 0) {
+                start(index - 1, 0);
+            }
+        });
+    }
+
+    void stop() {
+        offer(this::halt);
+    }
+
+    // The playlist dropped rows (ascending, by their old positions). The playing track keeps playing at its
+    // new position; if it was one of the removed rows, the track that moved into its place starts instead.
+    void rowsRemoved(int[] rows) {
+        offer(() -> {
+            if (index < 0) {
+                return;
+            }
+            int before = 0;
+            boolean removed = false;
+            for (int row : rows) {
+                if (row < index) {
+                    before++;
+                } else if (row == index) {
+                    removed = true;
+                }
+            }
+            index -= before;
+            if (!removed) {
+                return;
+            }
+            if (index < playlist.size()) {
+                start(index, 0);
+            } else {
+                halt();
+            }
+        });
+    }
+
+    void togglePause() {
+        offer(() -> {
+            if (track == null) {
+                start(Math.max(index, 0), 0);
+            } else {
+                setPaused(!paused);
+            }
+        });
+    }
+
+    void seek(long frame) {
+        stats.switchRequested();
+        offer(() -> {
+            if (track != null) {
+                boolean wasPaused = paused;
+                start(index, Math.max(0, frame));
+                paused = wasPaused;
+                if (wasPaused) {
+                    // Nothing becomes audible until resume, which isn't part of the seek
+                    stats.switchCancelled();
+                }
+            }
+        });
+    }
+
+    // Switches the output device (null for the system default), the line buffer length in milliseconds
+    // (AdaptiveBuffer.AUTO to size it from observed underruns) and the sample rate (FOLLOW_TRACK to play each
+    // track at its own rate and depth). The current track continues where it was.
+    void setOutput(Mixer.Info outputMixer, int bufferMillis, int sampleRate) {
+        offer(() -> {
+            mixer = outputMixer;
+            lineBuffer.setFixed(bufferMillis);
+            AudioFormat newFormat = fixedFormat(outputMixer, sampleRate);
+            boolean formatChanged = newFormat == null ? outputFormat != null : outputFormat == null || !newFormat.matches(outputFormat);
+            outputFormat = newFormat;
+            if (formatChanged && prefetched != null) {
+                prefetched.close();
+                prefetched = null;
+            }
+            if (line != null) {
+                long position = getPlaybackPosition();
+                float oldRate = line.getFormat().getFrameRate();
+                // With nothing loaded the line just closes, so the old rate will do
+                float newRate = outputFormat != null ? outputFormat.getFrameRate() : hasTrack() ? nativeRate(playlist.file(index), oldRate) : oldRate;
+                position = Math.round(position * (double) newRate / oldRate);
+                line.stop();
+                line.flush();
+                line.close();
+                line = null;
+                if (track != null) {
+                    boolean wasPaused = paused;
+                    start(index, position);
+                    paused = wasPaused;
+                }
+            }
+        });
+    }
+
+    // Stereo at the given rate, 24-bit if the device takes it, else 16-bit.
+    private static AudioFormat fixedFormat(Mixer.Info mixer, int sampleRate) {
+        if (sampleRate == FOLLOW_TRACK) {
+            return null;
+        }
+        for (int bits : new int[]{24, 16}) {
+            AudioFormat format = new AudioFormat(sampleRate, bits, 2, true, false);
+            DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+            try {
+                if (mixer == null ? AudioSystem.isLineSupported(info) : AudioSystem.getMixer(mixer).isLineSupported(info)) {
+                    return format;
+                }
+            } catch (IllegalArgumentException e) {
+                // The mixer went away
+            }
+        }
+        return new AudioFormat(sampleRate, 16, 2, true, false);
+    }
+
+    private static float nativeRate(File file, float fallback) {
+        try (AudioInputStream in = PcmCodec.openPcm(file)) {
+            return in.getFormat().getFrameRate();
+        } catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    // Mixers that can play, for the output menu.
+    static List<Mixer.Info> outputMixers() {
+        List<Mixer.Info> mixers = new ArrayList<>();
+        Line.Info sourceLine = new Line.Info(SourceDataLine.class);
+        for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+            if (AudioSystem.getMixer(info).getSourceLineInfo(sourceLine).length > 0) {
+                mixers.add(info);
+            }
+        }
+        return mixers;
+    }
+
+    // Seeks relative to what is currently audible.
+    void skip(double seconds) {
+        float rate = frameRate;
+        if (rate > 0) {
+            seek(getPlaybackPosition() + (long) (seconds * rate));
+        }
+    }
+
+    // Re-reads the current track's gain from the playlist.
+    void gainChanged() {
+        offer(() -> setGain(false));
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    boolean hasTrack() {
+        return index >= 0;
+    }
+
+    boolean isPlaying() {
+        return index >= 0 && !paused;
+    }
+
+    long getFramePosition() {
+        return framePosition;
+    }
+
+    // The frame being heard right now: the write position minus what is still queued in the line and the
+    // limiter's look-ahead. Right after a gapless transition the queue still holds the previous track, so
+    // this is clamped to the start.
+    long getPlaybackPosition() {
+        return Math.max(0, framePosition - queuedFrames);
+    }
+
+    // Length of the current track in frames, or AudioSystem.NOT_SPECIFIED.
+    long getFrameLength() {
+        return index >= 0 ? frameLength : AudioSystem.NOT_SPECIFIED;
+    }
+
+    float getFrameRate() {
+        return frameRate;
+    }
+
+    private void offer(Command command) {
+        commands.offer(command);
+        LockSupport.unpark(audioThread);
+    }
+
+    private void run() {
+        while (true) {
+            Command command;
+            while ((command = commands.poll()) != null) {
+                try {
+                    command.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                if (track == null || paused) {
+                    LockSupport.park(this);
+                } else if (!trackReady) {
+                    if (track.isOpened()) {
+                        prepareLine();
+                    } else {
+                        LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                    }
+                } else {
+                    int frameSize = Math.max(1, line.getFormat().getFrameSize());
+                    int queued = line.getBufferSize() - line.available();
+                    if (primed && !dry && queued == 0 && line.isActive()) {
+                        dry = true;
+                        stats.underrun(track.file);
+                        lineBuffer.underrun();
+                        if (line.getBufferSize() / frameSize != lineBuffer.frames(line.getFormat().getFrameRate())) {
+                            resizeLine();
+                            queued = 0;
+                        }
+                    }
+                    int bytesRead = track.poll(buffer, 0, frameSize * chunkFrames);
+                    if (bytesRead > 0) {
+                        if (primed) {
+                            if (!dry) {
+                                lineBuffer.playing(System.nanoTime());
+                            }
+                            stats.lineLevel(queued, line.getBufferSize(), 1000.0 * line.getBufferSize() / frameSize / line.getFormat().getFrameRate());
+                        }
+                        dry = false;
+                        starved = false;
+                        gainStage.process(buffer, 0, bytesRead);
+                        line.write(buffer, 0, bytesRead);
+                        if (!primed) {
+                            primed = true;
+                            stats.switchCompleted();
+                        }
+                        framePosition += bytesRead / frameSize;
+                        queuedFrames = (line.getBufferSize() - line.available()) / frameSize + (gainStage.isActive() ? gainStage.latency() : 0);
+                    } else if (bytesRead == 0) {
+                        // Counted once per stall, not once per wait
+                        if (primed && !starved) {
+                            starved = true;
+                            stats.decoderStall();
+                            lineBuffer.decoderStall();
+                        }
+                        LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                    } else {
+                        advance();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                closeTrack();
+                index = -1;
+            }
+        }
+    }
+
+    // Switches to a track on request: whatever is still queued in the line is discarded.
+    private void start(int trackIndex, long startFrame) {
+        if (trackIndex < 0 || trackIndex >= playlist.size()) {
+            return;
+        }
+        closeTrack();
+        if (line != null) {
+            line.stop();
+            line.flush();
+            gainStage.reset();
+        }
+        primed = false;
+        starved = false;
+        track = startFrame == 0 ? take(trackIndex) : TrackStream.open(trackIndex, playlist.file(trackIndex), startFrame, outputFormat, decoder, stats);
+        index = trackIndex;
+        framePosition = startFrame;
+        queuedFrames = 0;
+        paused = false;
+        trackReady = false;
+    }
+
+    // Moves on at the natural end of a track, keeping the line running when the formats allow it.
+    private void advance() {
+        int nextIndex = index + 1;
+        closeTrack();
+        if (nextIndex >= playlist.size()) {
+            if (line != null) {
+                drainLine();
+            }
+            primed = false;
+            index = -1;
+            playlist.playlistEnded();
+            return;
+        }
+        track = take(nextIndex);
+        index = nextIndex;
+        framePosition = 0;
+    }
+
+    private void halt() {
+        closeTrack();
+        if (prefetched != null) {
+            prefetched.close();
+            prefetched = null;
+        }
+        if (line != null) {
+            line.stop();
+            line.flush();
+            gainStage.reset();
+        }
+        primed = false;
+        index = -1;
+        paused = false;
+    }
+
+    private void prepareLine() throws InterruptedException, LineUnavailableException {
+        AudioFormat format;
+        try {
+            format = track.getFormat();
+        } catch (UnsupportedAudioFileException | IOException e) {
+            // Unreadable files are skipped instead of stopping the whole session
+            System.out.println(track.file + ": " + e.getMessage());
+            advance();
+            return;
+        }
+        int frameSize = Math.max(1, format.getFrameSize());
+        int bufferFrames = lineBuffer.frames(format.getFrameRate());
+        // Outside of underruns, a new buffer size only takes effect while the line is empty anyway, so gapless transitions stay intact
+        boolean resize = !primed && line != null && line.getBufferSize() / frameSize != bufferFrames;
+        if (line == null || !line.isOpen() || !line.getFormat().matches(format) || resize) {
+            if (line != null) {
+                drainLine();
+                line.close();
+            }
+            primed = false;
+            openLine(format);
+        }
+        frameLength = track.getFrameLength();
+        frameRate = format.getFrameRate();
+        if (!paused) {
+            line.start();
+        }
+        trackReady = true;
+        // A seek reopens only the current track; the next one stays prefetched
+        prefetch(index + 1);
+        playlist.trackStarted(index);
+        setGain(true);
+    }
+
+    private void openLine(AudioFormat format) throws LineUnavailableException {
+        int frameSize = Math.max(1, format.getFrameSize());
+        line = AudioSystem.getSourceDataLine(format, mixer);
+        line.open(format, lineBuffer.frames(format.getFrameRate()) * frameSize);
+        // Writes stay well below the buffer, so a small buffer still gets topped up several times over
+        chunkFrames = Math.max(64, Math.min(CHUNK_FRAMES, line.getBufferSize() / frameSize / 4));
+        buffer = new byte[frameSize * chunkFrames];
+        if (!gainStage.configure(format, chunkFrames)) {
+            System.out.println("No software gain for " + format + ", falling back to the line's gain control");
+        }
+    }
+
+    // Reopens the line at the size the adaptive buffer asks for. Only called when the line has run dry, so
+    // the one thing to carry over is the audio still in the limiter's look-ahead.
+    private void resizeLine() throws LineUnavailableException {
+        AudioFormat format = line.getFormat();
+        byte[] tail = Arrays.copyOf(buffer, gainStage.drain(buffer, 0));
+        line.close();
+        openLine(format);
+        setGain(true);
+        line.write(tail, 0, tail.length);
+        if (!paused) {
+            line.start();
+        }
+    }
+
+    // Plays out whatever the limiter's look-ahead still holds, then waits for the line to empty.
+    private void drainLine() {
+        int tail = gainStage.drain(buffer, 0);
+        if (tail > 0) {
+            line.write(buffer, 0, tail);
+        }
+        line.drain();
+    }
+
+    private void setPaused(boolean pause) {
+        paused = pause;
+        if (line != null && trackReady) {
+            if (pause) {
+                line.stop();
+            } else {
+                line.start();
+            }
+        }
+    }
+
+    private void setGain(boolean immediate) {
+        if (line == null || index < 0) {
+            return;
+        }
+        if (gainStage.isActive()) {
+            gainStage.setGain(playlist.gain(index), immediate);
+            return;
+        }
+        try {
+            FloatControl gainControl = (FloatControl) line.getControl(FloatControl.Type.MASTER_GAIN);
+            float gainValue = (float) playlist.gain(index);
+            gainControl.setValue(Math.min(gainControl.getMaximum(), Math.max(gainControl.getMinimum(), gainValue)));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private TrackStream take(int trackIndex) {
+        TrackStream next = prefetched;
+        prefetched = null;
+        if (next != null && next.index == trackIndex && next.file.equals(playlist.file(trackIndex))) {
+            return next;
+        }
+        if (next != null) {
+            next.close();
+        }
+        return TrackStream.open(trackIndex, playlist.file(trackIndex), 0, outputFormat, decoder, stats);
+    }
+
+    private void prefetch(int trackIndex) {
+        if (prefetched != null && prefetched.index == trackIndex && prefetched.file.equals(playlist.file(trackIndex))) {
+            return;
+        }
+        if (prefetched != null) {
+            prefetched.close();
+            prefetched = null;
+        }
+        if (trackIndex < playlist.size()) {
+            prefetched = TrackStream.open(trackIndex, playlist.file(trackIndex), 0, outputFormat, decoder, stats);
+        }
+    }
+
+    private void closeTrack() {
+        if (track != null) {
+            track.close();
+            track = null;
+        }
+        trackReady = false;
+    }
+}
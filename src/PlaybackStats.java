@@ -0,0 +1,239 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Latency, buffer and decoder measurements for the playback path. The audio thread and the decoders only
+// bump counters here, with no locks, so measuring doesn't disturb what is measured. Readers are the JMX
+// bean, the periodic JFR event and the stats window.
+class PlaybackStats implements PlaybackStatsMBean {
+    @Name("wavplayer.TrackSwitch")
+    @Label("Track Switch")
+    @Category("WavPlayer")
+    @Description("Time from a play, skip or seek request to its first frame reaching the line")
+    @StackTrace(false)
+    static class TrackSwitchEvent extends Event {
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("wavplayer.Underrun")
+    @Label("Underrun")
+    @Category("WavPlayer")
+    @Description("The line ran dry while playing")
+    @StackTrace(false)
+    static class UnderrunEvent extends Event {
+        @Label("Track")
+        String track;
+    }
+
+    @Name("wavplayer.PlaybackStatistics")
+    @Label("Playback Statistics")
+    @Category("WavPlayer")
+    @Period("1 s")
+    @StackTrace(false)
+    static class StatisticsEvent extends Event {
+        @Label("Line Fill Percent")
+        double lineFill;
+        @Label("Underruns")
+        long underruns;
+        @Label("Decoder Stalls")
+        long decoderStalls;
+        @Label("Decoder Threads")
+        int decoderThreads;
+    }
+
+    private final IntSupplier decoderThreads;
+
+    private volatile long switchRequested = 0;
+    private final AtomicLong switches = new AtomicLong();
+    private final LongAdder switchNanos = new LongAdder();
+    private volatile long lastSwitchNanos = 0;
+    private final AtomicLong maxSwitchNanos = new AtomicLong();
+
+    private volatile double lineFill = 0;
+    private volatile double minLineFill = 100;
+    private volatile double lineBufferMillis = 0;
+    private final LongAdder underruns = new LongAdder();
+    private final LongAdder decoderStalls = new LongAdder();
+
+    private final LongAdder decodeChunks = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final AtomicLong maxDecodeNanos = new AtomicLong();
+
+    PlaybackStats(IntSupplier decoderThreads) {
+        this.decoderThreads = decoderThreads;
+    }
+
+    // Publishes the bean and the periodic JFR event; failures only cost the instrumentation.
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, PlaybackStatsMBean.class),
+                    new ObjectName("WavPlayer:type=PlaybackStats"));
+        } catch (JMException e) {
+            System.out.println("Playback statistics are not available over JMX: " + e.getMessage());
+        }
+        FlightRecorder.addPeriodicEvent(StatisticsEvent.class, () -> {
+            StatisticsEvent event = new StatisticsEvent();
+            event.lineFill = lineFill;
+            event.underruns = underruns.sum();
+            event.decoderStalls = decoderStalls.sum();
+            event.decoderThreads = decoderThreads.getAsInt();
+            event.commit();
+        });
+    }
+
+    // Called when a play, skip or seek is requested; the next first write completes the measurement.
+    void switchRequested() {
+        switchRequested = System.nanoTime();
+    }
+
+    void switchCancelled() {
+        switchRequested = 0;
+    }
+
+    // Called by the audio thread after the first write following a track switch.
+    void switchCompleted() {
+        long requested = switchRequested;
+        if (requested == 0) {
+            return;
+        }
+        switchRequested = 0;
+        long latency = System.nanoTime() - requested;
+        switches.incrementAndGet();
+        switchNanos.add(latency);
+        lastSwitchNanos = latency;
+        maxSwitchNanos.accumulateAndGet(latency, Math::max);
+        TrackSwitchEvent event = new TrackSwitchEvent();
+        if (event.isEnabled()) {
+            event.latency = latency;
+            event.commit();
+        }
+    }
+
+    // Called by the audio thread before each write with what the line still had queued.
+    void lineLevel(int queuedBytes, int bufferBytes, double bufferMillis) {
+        double fill = 100.0 * queuedBytes / Math.max(1, bufferBytes);
+        lineFill = fill;
+        lineBufferMillis = bufferMillis;
+        if (fill < minLineFill) {
+            minLineFill = fill;
+        }
+    }
+
+    void underrun(Object track) {
+        underruns.increment();
+        UnderrunEvent event = new UnderrunEvent();
+        if (event.isEnabled()) {
+            event.track = String.valueOf(track);
+            event.commit();
+        }
+    }
+
+    // The decoder had nothing ready when the audio thread asked.
+    void decoderStall() {
+        decoderStalls.increment();
+    }
+
+    // Called by decoder threads with the time taken to read and buffer one chunk, excluding waits for space.
+    void decodeChunk(long nanos) {
+        decodeChunks.increment();
+        decodeNanos.add(nanos);
+        maxDecodeNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    @Override
+    public long getTrackSwitches() {
+        return switches.get();
+    }
+
+    @Override
+    public double getSwitchLatencyLastMillis() {
+        return lastSwitchNanos / 1e6;
+    }
+
+    @Override
+    public double getSwitchLatencyAverageMillis() {
+        long count = switches.get();
+        return count == 0 ? 0 : switchNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getSwitchLatencyMaxMillis() {
+        return maxSwitchNanos.get() / 1e6;
+    }
+
+    @Override
+    public double getLineFillPercent() {
+        return lineFill;
+    }
+
+    @Override
+    public double getLineFillMinPercent() {
+        return minLineFill;
+    }
+
+    @Override
+    public double getLineBufferMillis() {
+        return lineBufferMillis;
+    }
+
+    @Override
+    public long getUnderruns() {
+        return underruns.sum();
+    }
+
+    @Override
+    public long getDecoderStalls() {
+        return decoderStalls.sum();
+    }
+
+    @Override
+    public double getDecodeChunkAverageMicros() {
+        long count = decodeChunks.sum();
+        return count == 0 ? 0 : decodeNanos.sum() / 1e3 / count;
+    }
+
+    @Override
+    public double getDecodeChunkMaxMicros() {
+        return maxDecodeNanos.get() / 1e3;
+    }
+
+    @Override
+    public int getDecoderThreads() {
+        return decoderThreads.getAsInt();
+    }
+
+    @Override
+    public int getThreadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    @Override
+    public void reset() {
+        switches.set(0);
+        switchNanos.reset();
+        lastSwitchNanos = 0;
+        maxSwitchNanos.set(0);
+        minLineFill = lineFill;
+        underruns.reset();
+        decoderStalls.reset();
+        decodeChunks.reset();
+        decodeNanos.reset();
+        maxDecodeNanos.set(0);
+    }
+}
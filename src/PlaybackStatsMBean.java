@@ -0,0 +1,30 @@
+// Management view of PlaybackStats, registered as WavPlayer:type=PlaybackStats.
+public interface PlaybackStatsMBean {
+    long getTrackSwitches();
+
+    double getSwitchLatencyLastMillis();
+
+    double getSwitchLatencyAverageMillis();
+
+    double getSwitchLatencyMaxMillis();
+
+    double getLineFillPercent();
+
+    double getLineFillMinPercent();
+
+    double getLineBufferMillis();
+
+    long getUnderruns();
+
+    long getDecoderStalls();
+
+    double getDecodeChunkAverageMicros();
+
+    double getDecodeChunkMaxMicros();
+
+    int getDecoderThreads();
+
+    int getThreadCount();
+
+    void reset();
+}
@@ -0,0 +1,390 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Remote control over HTTP, for running the player from another machine in the room:
+//
+//   POST /api/toggle, /api/next, /api/previous     transport, like SPACE, DOWN and UP
+//   POST /api/gain?delta=0.5                       gain of the playing track, like LEFT and RIGHT
+//   GET  /api/status                               now playing, as JSON
+//   GET  /api/events                               the same JSON as Server-Sent Events, on every change
+//   GET  /                                         a small page with buttons that uses the above
+//
+// Every API request needs the token, as ?token= or an X-Token header. Commands are only handed to Controls,
+// which queues them, and answered right away, so a stalled client can't hold up the audio or Swing threads.
+// Each event stream has its own writer and holds at most the latest event, so a client that stops reading,
+// like a phone going to sleep, only delays itself, and is dropped once a write has been stuck for too long.
+class RemoteControl {
+    interface Controls {
+        void togglePause();
+
+        void next();
+
+        void previous();
+
+        void changeGain(double delta);
+    }
+
+    private static final long KEEPALIVE_SECONDS = 15;
+    private static final long WRITE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final byte[] KEEPALIVE = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final String PAGE = "<!DOCTYPE html><html><head><meta charset=\"utf-8\">"
+            + "<meta name=\"viewport\" content=\"width=device-width\"><title>Wav Player</title></head>"
+            + "<body style=\"font-family:sans-serif\"><h3 id=\"track\">-</h3><p id=\"state\"></p><p>"
+            + "<button onclick=\"send('previous')\">Previous</button> <button onclick=\"send('toggle')\">Play/Pause</button> "
+            + "<button onclick=\"send('next')\">Next</button></p><p><button onclick=\"send('gain?delta=-0.5')\">Gain -0.5</button> "
+            + "<button onclick=\"send('gain?delta=0.5')\">Gain +0.5</button></p><script>"
+            + "const token = new URLSearchParams(location.search).get('token');"
+            + "function send(command) { fetch('/api/' + command + (command.includes('?') ? '&' : '?') + 'token=' + token, {method: 'POST'}); }"
+            + "new EventSource('/api/events?token=' + token).onmessage = e => { const s = JSON.parse(e.data);"
+            + " document.getElementById('track').textContent = s.file || '-';"
+            + " document.getElementById('state').textContent = (s.playing ? 'Playing' : 'Paused') + ', gain ' + s.gain + ' dB'"
+            + " + (s.clips ? ' (clips)' : '') + ', ' + s.position + ' / ' + s.length + ' s'; };"
+            + "</script></body></html>";
+
+    private final Controls controls;
+    private final String token;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ExecutorService writers;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final Thread eventThread;
+    private volatile String status = "{}";
+    private volatile boolean stopped = false;
+
+    RemoteControl(int port, String token, Controls controls) throws IOException {
+        this.controls = controls;
+        this.token = token;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        // A handful of request threads is plenty; event streams don't keep one busy
+        executor = Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "remote-control");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        // One thread per stream that is being written; a stalled stream parks only its own
+        writers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "remote-events-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/", this::handle);
+        eventThread = new Thread(this::sendEvents, "remote-events");
+        eventThread.setDaemon(true);
+    }
+
+    // A random token for a new installation.
+    static String newToken() {
+        byte[] bytes = new byte[12];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    void start() {
+        server.start();
+        eventThread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        eventThread.interrupt();
+        // Closes the event streams' connections too, which ends a write stuck on one
+        server.stop(0);
+        executor.shutdownNow();
+        writers.shutdownNow();
+        listeners.clear();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Publishes the player's state; listeners only hear about it if it differs from the last one.
+    void update(String newStatus) {
+        if (!newStatus.equals(status)) {
+            status = newStatus;
+            events.offer(newStatus);
+        }
+    }
+
+    // The status JSON. Position and length are whole seconds, so a playing track updates once a second.
+    static String status(boolean playing, int index, String file, double gain, boolean clips, long position, long length) {
+        return String.format(Locale.ROOT, "{\"playing\": %b, \"index\": %d, \"file\": %s, \"gain\": %.1f, \"clips\": %b, \"position\": %d, \"length\": %d}",
+                playing, index, file == null ? "null" : quote(file), gain, clips, position, length);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            URI uri = exchange.getRequestURI();
+            Map<String, String> query = parseQuery(uri.getRawQuery());
+            String path = uri.getPath();
+            String method = exchange.getRequestMethod();
+            if (path.equals("/") && method.equals("GET")) {
+                respond(exchange, 200, "text/html; charset=utf-8", PAGE);
+                return;
+            }
+            String given = exchange.getRequestHeaders().getFirst("X-Token");
+            given = given != null ? given : query.get("token");
+            if (given == null || !MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+                respond(exchange, 403, "text/plain", "Forbidden\n");
+                return;
+            }
+            if (method.equals("GET") && path.equals("/api/status")) {
+                respond(exchange, 200, "application/json", status + "\n");
+            } else if (method.equals("GET") && path.equals("/api/events")) {
+                openEvents(exchange);
+            } else if (method.equals("POST") && path.startsWith("/api/")) {
+                command(exchange, path.substring("/api/".length()), query);
+            } else {
+                respond(exchange, 404, "text/plain", "Not found\n");
+            }
+        } catch (IOException | RuntimeException e) {
+            exchange.close();
+            throw e;
+        }
+    }
+
+    private void command(HttpExchange exchange, String name, Map<String, String> query) throws IOException {
+        drain(exchange.getRequestBody());
+        switch (name) {
+            case "toggle":
+                controls.togglePause();
+                break;
+            case "next":
+                controls.next();
+                break;
+            case "previous":
+                controls.previous();
+                break;
+            case "gain":
+                double delta;
+                try {
+                    delta = Double.parseDouble(query.getOrDefault("delta", ""));
+                } catch (NumberFormatException e) {
+                    respond(exchange, 400, "text/plain", "delta must be a number of dB\n");
+                    return;
+                }
+                if (!Double.isFinite(delta) || Math.abs(delta) > 24) {
+                    respond(exchange, 400, "text/plain", "delta must be within 24 dB\n");
+                    return;
+                }
+                controls.changeGain(delta);
+                break;
+            default:
+                respond(exchange, 404, "text/plain", "Not found\n");
+                return;
+        }
+        // Queued, not done yet; the events stream reports the outcome
+        respond(exchange, 202, "application/json", status + "\n");
+    }
+
+    // The response stays open and is written by its listener; the request thread goes back to the pool.
+    private void openEvents(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        Listener listener = new Listener(exchange.getResponseBody());
+        listeners.add(listener);
+        // Unless an event got there first, which is at least as new
+        listener.sendIfIdle(("data: " + status + "\n\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendEvents() {
+        while (!stopped) {
+            String event;
+            try {
+                event = events.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Only the latest state matters to a client that fell behind
+            String newer;
+            while ((newer = events.poll()) != null) {
+                event = newer;
+            }
+            byte[] message = event == null ? null : ("data: " + event + "\n\n").getBytes(StandardCharsets.UTF_8);
+            long now = System.nanoTime();
+            for (Listener listener : listeners) {
+                if (listener.stalled(now)) {
+                    listeners.remove(listener);
+                    listener.abort();
+                } else if (message != null) {
+                    listener.send(message);
+                } else {
+                    listener.sendIfIdle(KEEPALIVE);
+                }
+            }
+        }
+    }
+
+    // One event stream. It holds only the newest message not yet written, so a client that stops reading
+    // costs one message and one parked writer thread, not a queue that grows for as long as it sleeps.
+    private final class Listener implements Runnable {
+        private final OutputStream out;
+        private final AtomicReference<byte[]> pending = new AtomicReference<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean dropped = false;
+        // The thread in the middle of a write and when it started, or null; guarded by this
+        private Thread writing;
+        private long writeStarted;
+
+        Listener(OutputStream out) {
+            this.out = out;
+        }
+
+        // Replaces whatever is still waiting, since only the latest state matters to a client that fell behind.
+        void send(byte[] message) {
+            pending.set(message);
+            schedule();
+        }
+
+        void sendIfIdle(byte[] message) {
+            if (pending.compareAndSet(null, message)) {
+                schedule();
+            }
+        }
+
+        synchronized boolean stalled(long now) {
+            return writing != null && now - writeStarted > WRITE_TIMEOUT_NANOS;
+        }
+
+        // Interrupting a write on the connection's channel closes the connection under it.
+        synchronized void abort() {
+            dropped = true;
+            if (writing != null) {
+                writing.interrupt();
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    writers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Stopped
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!dropped) {
+                    byte[] message = pending.getAndSet(null);
+                    if (message == null) {
+                        scheduled.set(false);
+                        // Something sent after the getAndSet saw the flag still set and left it to this run
+                        if (pending.get() == null || !scheduled.compareAndSet(false, true)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    write(message);
+                }
+                closeQuietly(out);
+            } catch (IOException e) {
+                // The client went away, or was dropped mid-write
+                listeners.remove(this);
+                dropped = true;
+                closeQuietly(out);
+            }
+        }
+
+        private void write(byte[] message) throws IOException {
+            synchronized (this) {
+                writing = Thread.currentThread();
+                writeStarted = System.nanoTime();
+            }
+            try {
+                out.write(message);
+                out.flush();
+            } finally {
+                synchronized (this) {
+                    writing = null;
+                }
+                // An abort that came just as the write finished must not reach the pool thread's next task
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+            // Commands carry no body
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
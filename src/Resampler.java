@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+// Polyphase windowed-sinc resampler for interleaved float samples. The rate ratio is reduced to up/down
+// and each of the up phases gets its own Kaiser-windowed sinc, so every output sample is a single dot
+// product. Ratios that don't reduce to MAX_PHASES or fewer phases are rounded to the nearest 1/MAX_PHASES
+// step, a pitch error far below what anyone can hear.
+class Resampler {
+    static final int TAPS = 128;
+    private static final int MAX_TAPS = 512;
+    private static final int MAX_PHASES = 1024;
+    // About 90 dB of stopband attenuation
+    private static final double BETA = 8.6;
+    // At this beta the transition band is about 5.7/TAPS of the band wide. Putting the cutoff half of that
+    // below the lower Nyquist frequency makes the stopband start right at it: flat to 20 kHz at 44.1 kHz.
+    private static final double CUTOFF = 1 - 5.7 / TAPS;
+
+    private final SampleKernels kernels = SampleKernels.get();
+    private final int channels;
+    private final int up;
+    private final int down;
+    private final int taps;
+    // Phase after phase, taps coefficients each
+    private final float[] coefficients;
+    private float[][] history;
+    private int length;
+    // First history sample under the filter for the next output, and the output's fractional phase
+    private int start = 0;
+    private int phase = 0;
+
+    Resampler(int channels, float inRate, float outRate) {
+        long inHz = Math.round(inRate);
+        long outHz = Math.round(outRate);
+        long gcd = gcd(inHz, outHz);
+        long l = outHz / gcd;
+        long m = inHz / gcd;
+        if (l > MAX_PHASES) {
+            m = Math.max(1, Math.round(m * (double) MAX_PHASES / l));
+            l = MAX_PHASES;
+        }
+        this.channels = channels;
+        this.up = (int) l;
+        this.down = (int) m;
+
+        // Downsampling lowers the cutoff, so the filter gets longer to keep the same transition band
+        double ratio = Math.min(1.0, (double) up / down);
+        int t = (int) Math.ceil(TAPS / ratio);
+        this.taps = Math.min(MAX_TAPS, t + (t & 1));
+        double cutoff = 0.5 * ratio * CUTOFF;
+        coefficients = new float[up * taps];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            double[] phaseTaps = new double[taps];
+            for (int j = 0; j < taps; j++) {
+                double x = taps / 2 - 1 - j + (double) p / up;
+                phaseTaps[j] = 2 * cutoff * sinc(2 * cutoff * x) * kaiser(x / (taps / 2.0));
+                sum += phaseTaps[j];
+            }
+            // Unity gain at DC in every phase, so there's no ripple at the phase rate
+            for (int j = 0; j < taps; j++) {
+                coefficients[p * taps + j] = (float) (phaseTaps[j] / sum);
+            }
+        }
+
+        // Half a filter of silence in front, so the first output lines up with the first input
+        history = new float[channels][4096 + taps];
+        length = taps / 2 - 1;
+    }
+
+    // Output frames one process() call can produce for frames input frames, at most.
+    int maxOutput(int frames) {
+        return (int) (((long) taps + frames) * up / down) + 2;
+    }
+
+    // Output frames for a whole stream of frames input frames.
+    long outputFrames(long frames) {
+        return (frames * up + down - 1) / down;
+    }
+
+    // Resamples frames interleaved input frames into output and returns the number of frames written.
+    int process(float[] input, int frames, float[] output) {
+        if (history[0].length < length + frames) {
+            for (int c = 0; c < channels; c++) {
+                history[c] = Arrays.copyOf(history[c], (length + frames) * 2);
+            }
+        }
+        for (int c = 0; c < channels; c++) {
+            float[] h = history[c];
+            for (int i = 0, j = c; i < frames; i++, j += channels) {
+                h[length + i] = input[j];
+            }
+        }
+        length += frames;
+
+        int produced = 0;
+        while (start + taps <= length) {
+            int offset = phase * taps;
+            for (int c = 0; c < channels; c++) {
+                output[produced * channels + c] = kernels.dot(history[c], start, coefficients, offset, taps);
+            }
+            produced++;
+            phase += down;
+            start += phase / up;
+            phase %= up;
+        }
+
+        int consumed = Math.min(start, length);
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(history[c], consumed, history[c], 0, length - consumed);
+        }
+        length -= consumed;
+        start -= consumed;
+        return produced;
+    }
+
+    // Pushes the second half of the filter through with silence, so the end of the input comes out.
+    int flush(float[] output) {
+        return process(new float[(taps / 2) * channels], taps / 2, output);
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    private static double kaiser(double x) {
+        return Math.abs(x) > 1 ? 0 : besselI0(BETA * Math.sqrt(1 - x * x)) / besselI0(BETA);
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50 && term > 1e-12 * sum; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
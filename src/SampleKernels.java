@@ -0,0 +1,84 @@
+// The inner loops of sample conversion, resampling, gain and true-peak metering. This class is the scalar version; VectorKernels
+// overrides it with jdk.incubator.vector code. Incubator modules need --add-modules at compile and run time,
+// so VectorKernels lives in its own source folder and is only loaded when the JVM has the module, e.g.
+//
+//   java --add-modules jdk.incubator.vector -jar WavPlayer.jar
+//
+// Setting -Dwavplayer.kernels=scalar forces the scalar loops. The vector dot product and FIR sum in lanes
+// with fused multiply-adds, so they match these within float rounding, not bit for bit.
+class SampleKernels {
+    private static final SampleKernels INSTANCE = load();
+
+    static SampleKernels get() {
+        return INSTANCE;
+    }
+
+    private static SampleKernels load() {
+        if (!"scalar".equals(System.getProperty("wavplayer.kernels")) && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (SampleKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Built without the vector sources, or the JDK's Vector API no longer matches them
+            }
+        }
+        return new SampleKernels();
+    }
+
+    String name() {
+        return "scalar";
+    }
+
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    void scale(float[] x, int offset, int length, float factor) {
+        for (int i = offset; i < offset + length; i++) {
+            x[i] *= factor;
+        }
+    }
+
+    // The largest magnitude of x filtered by taps, over the outputs for windows x[i .. i + taps.length) with
+    // i below frames.
+    float firPeak(float[] x, int frames, float[] taps) {
+        float peak = 0;
+        for (int i = 0; i < frames; i++) {
+            float sum = 0;
+            for (int t = 0; t < taps.length; t++) {
+                sum += x[i + t] * taps[t];
+            }
+            float abs = Math.abs(sum);
+            if (abs > peak) {
+                peak = abs;
+            }
+        }
+        return peak;
+    }
+
+    // Integer samples to floats, multiplied by scale.
+    void toFloats(int[] src, float[] dst, int length, float scale) {
+        for (int i = 0; i < length; i++) {
+            dst[i] = src[i] * scale;
+        }
+    }
+
+    // Floats in [-1, 1] to signed integers of the given width, rounded and clamped. dither, if not null,
+    // holds noise in LSBs that is added before rounding.
+    void quantize(float[] src, float[] dither, int[] dst, int length, int bits) {
+        float fullScale = (float) (1L << (bits - 1));
+        int min = -1 << (bits - 1);
+        int max = ~min;
+        for (int i = 0; i < length; i++) {
+            float x = src[i] * fullScale;
+            if (dither != null) {
+                x += dither[i];
+            }
+            int value = (int) (x + (x < 0 ? -0.5f : 0.5f));
+            dst[i] = Math.max(min, Math.min(max, value));
+        }
+    }
+}
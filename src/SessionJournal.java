@@ -0,0 +1,380 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+// Append-only log of the session, so nothing is lost if the player dies between index saves: the open
+// folders, every gain edit and the tracks in the order they were played. Each edit appends one small
+// record, whatever the size of the library.
+//
+// Records are written by a background thread. It takes everything queued since its last write and
+// fsyncs once for the batch, so a burst of key presses costs one sync. Each record carries a CRC, so a
+// record torn by a crash is detected on replay and cut off. When the log has grown to several times the
+// state it describes, the same thread rewrites it as a snapshot of that state.
+class SessionJournal {
+    private static final int MAGIC = 0x5750534A; // "WPSJ"
+    private static final int VERSION = 1;
+    static final Path DEFAULT_FILE = Path.of(System.getProperty("user.home"), ".wavplayer", "session.journal");
+    private static final long MIN_COMPACT_BYTES = 256 * 1024;
+    // Queued by close; interrupting the writer instead would close its channel mid-write
+    private static final byte[] CLOSE = new byte[0];
+
+    private static final byte ROOTS = 1;
+    private static final byte GAIN = 2;
+    private static final byte TRACK = 3;
+    private static final byte NEW_PASS = 4;
+
+    // What a journal describes: the last open folders, the latest manual gain per file and the tracks
+    // played in the current pass, the last one with the position it was left at.
+    static class State {
+        final List<String> roots = new ArrayList<>();
+        final Map<String, Float> gains = new LinkedHashMap<>();
+        final List<String> played = new ArrayList<>();
+        long position = 0;
+
+        String current() {
+            return played.isEmpty() ? null : played.get(played.size() - 1);
+        }
+
+        private void apply(byte type, ByteBuffer in) {
+            switch (type) {
+                case ROOTS:
+                    roots.clear();
+                    for (int i = in.getInt(); i > 0; i--) {
+                        roots.add(readString(in));
+                    }
+                    break;
+                case GAIN:
+                    String file = readString(in);
+                    float gain = in.getFloat();
+                    if (in.get() != 0) {
+                        // Re-inserted, so compaction keeps the edit order
+                        gains.remove(file);
+                        gains.put(file, gain);
+                    } else {
+                        gains.remove(file);
+                    }
+                    break;
+                case TRACK:
+                    String track = readString(in);
+                    long frame = in.getLong();
+                    if (!track.equals(current())) {
+                        played.add(track);
+                    }
+                    position = frame;
+                    break;
+                case NEW_PASS:
+                    played.clear();
+                    position = 0;
+                    break;
+                default:
+                    throw new IllegalStateException("unknown record " + type);
+            }
+        }
+    }
+
+    private final Path file;
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    // Written by the writer thread only, from the records it writes
+    private final State state;
+    private FileChannel channel;
+    private long compactedBytes;
+    private volatile boolean closed = false;
+
+    private SessionJournal(Path file, State state, FileChannel channel) {
+        this.file = file;
+        this.state = state;
+        this.channel = channel;
+        writer = new Thread(this::run, "session-journal");
+        writer.setDaemon(true);
+        if (channel == null) {
+            // Records are dropped; the player works as before, just without crash safety
+            closed = true;
+        } else {
+            writer.start();
+        }
+    }
+
+    // Replays the journal into recovered and opens it for appending. A missing or unreadable journal
+    // starts empty.
+    static SessionJournal open(Path file, State recovered) {
+        long validBytes = 0;
+        try {
+            Files.createDirectories(file.getParent());
+            if (Files.isRegularFile(file)) {
+                validBytes = replay(file, recovered);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Ignoring unreadable session journal " + file + ": " + e.getMessage());
+            recovered.roots.clear();
+            recovered.gains.clear();
+            recovered.played.clear();
+            recovered.position = 0;
+            validBytes = 0;
+        }
+        State state = new State();
+        state.roots.addAll(recovered.roots);
+        state.gains.putAll(recovered.gains);
+        state.played.addAll(recovered.played);
+        state.position = recovered.position;
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (validBytes == 0) {
+                channel.truncate(0);
+                writeHeader(channel);
+            } else {
+                // Drops a record torn by a crash
+                channel.truncate(validBytes);
+                channel.position(validBytes);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Not used anyway
+                }
+                channel = null;
+            }
+        }
+        SessionJournal journal = new SessionJournal(file, state, channel);
+        journal.compactedBytes = validBytes;
+        return journal;
+    }
+
+    // Returns the length of the intact part of the journal.
+    private static long replay(Path file, State state) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, channel.size()));
+            while (in.hasRemaining() && channel.read(in) != -1) {
+                // Read it whole
+            }
+            in.flip();
+            if (in.remaining() < 8 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                throw new IOException("not a version " + VERSION + " journal");
+            }
+            CRC32 crc = new CRC32();
+            while (in.remaining() >= 8) {
+                int start = in.position();
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > in.remaining()) {
+                    return start;
+                }
+                ByteBuffer record = in.slice(in.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    return start;
+                }
+                state.apply(record.get(), record);
+                in.position(in.position() + length);
+            }
+            return in.position();
+        }
+    }
+
+    void roots(List<String> roots) {
+        append(out -> {
+            out.writeByte(ROOTS);
+            out.writeInt(roots.size());
+            for (String root : roots) {
+                writeString(out, root);
+            }
+        });
+    }
+
+    // A gain that is no longer manual, e.g. because the file changed, is logged with manual false.
+    void gain(String file, double gain, boolean manual) {
+        append(out -> {
+            out.writeByte(GAIN);
+            writeString(out, file);
+            out.writeFloat((float) gain);
+            out.writeBoolean(manual);
+        });
+    }
+
+    // A track started playing, or was left at frame.
+    void track(String file, long frame) {
+        append(out -> {
+            out.writeByte(TRACK);
+            writeString(out, file);
+            out.writeLong(frame);
+        });
+    }
+
+    void newPass() {
+        append(out -> out.writeByte(NEW_PASS));
+    }
+
+    // Writes out what is queued and stops the writer. Called when the player exits.
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.offer(CLOSE);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(RecordWriter record) {
+        if (closed) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            record.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        queue.offer(bytes.toByteArray());
+    }
+
+    private void run() {
+        List<byte[]> batch = new ArrayList<>();
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            closing = batch.remove(CLOSE);
+            if (!batch.isEmpty()) {
+                for (byte[] record : batch) {
+                    state.apply(record[0], ByteBuffer.wrap(record, 1, record.length - 1));
+                }
+                try {
+                    write(channel, batch);
+                    channel.force(false);
+                    if (channel.position() > Math.max(MIN_COMPACT_BYTES, compactedBytes * 4)) {
+                        compact();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                batch.clear();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void write(FileChannel channel, List<byte[]> records) throws IOException {
+        int size = 0;
+        for (byte[] record : records) {
+            size += 8 + record.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (byte[] record : records) {
+            crc.reset();
+            crc.update(record);
+            out.putInt(record.length).putInt((int) crc.getValue()).put(record);
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    // Rewrites the journal as the records that reproduce the current state, next to it and then over it.
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        List<byte[]> records = new ArrayList<>();
+        records.add(record(out -> {
+            out.writeByte(ROOTS);
+            out.writeInt(state.roots.size());
+            for (String root : state.roots) {
+                writeString(out, root);
+            }
+        }));
+        for (Map.Entry<String, Float> gain : state.gains.entrySet()) {
+            records.add(record(out -> {
+                out.writeByte(GAIN);
+                writeString(out, gain.getKey());
+                out.writeFloat(gain.getValue());
+                out.writeBoolean(true);
+            }));
+        }
+        for (int i = 0; i < state.played.size(); i++) {
+            String track = state.played.get(i);
+            long frame = i == state.played.size() - 1 ? state.position : 0;
+            records.add(record(out -> {
+                out.writeByte(TRACK);
+                writeString(out, track);
+                out.writeLong(frame);
+            }));
+        }
+
+        FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeHeader(compacted);
+            write(compacted, records);
+            compacted.force(false);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = compacted;
+            compactedBytes = compacted.position();
+        } catch (IOException e) {
+            compacted.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static byte[] record(RecordWriter record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            record.write(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
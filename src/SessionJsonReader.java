@@ -0,0 +1,270 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pull parser for the gain export format. Entries are handed out as they are read, so memory use doesn't
+// grow with the file. Keys it doesn't know are skipped, so files from newer versions still import.
+class SessionJsonReader implements Closeable {
+    interface EntryHandler {
+        // path is null in files written before relative paths were exported. folder indexes the list
+        // readFolderPaths returns and is 0 for single-folder exports.
+        void entry(String fileName, int folder, String path, double gain);
+    }
+
+    private final Reader in;
+    private int next;
+
+    SessionJsonReader(File file) throws IOException {
+        this(Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    SessionJsonReader(Reader in) throws IOException {
+        this.in = in instanceof BufferedReader ? in : new BufferedReader(in);
+        next = this.in.read();
+    }
+
+    // Returns the library folders, reading only as far as the file list, or an empty list if the document
+    // has none.
+    static List<String> readFolderPaths(File file) throws IOException {
+        List<String> folderPaths = new ArrayList<>();
+        try (SessionJsonReader reader = new SessionJsonReader(file)) {
+            reader.read(folderPaths, null);
+        }
+        return folderPaths;
+    }
+
+    static void readEntries(File file, EntryHandler handler) throws IOException {
+        try (SessionJsonReader reader = new SessionJsonReader(file)) {
+            reader.read(null, handler);
+        }
+    }
+
+    // Stops at the file list when only the folders are asked for.
+    private void read(List<String> folderPaths, EntryHandler handler) throws IOException {
+        expect('{');
+        if (peek() == '}') {
+            return;
+        }
+        String folderPath = null;
+        List<String> folders = null;
+        do {
+            String key = readString();
+            expect(':');
+            if (folderPaths != null && key.equals("files")) {
+                break;
+            } else if (folderPaths != null && key.equals("folderPath") && peek() == '"') {
+                folderPath = readString();
+            } else if (folderPaths != null && key.equals("folders") && peek() == '[') {
+                folders = readStrings();
+            } else if (key.equals("files") && handler != null && peek() == '[') {
+                readFiles(handler);
+            } else {
+                skipValue();
+            }
+        } while (consume(','));
+        if (folderPaths != null) {
+            if (folders != null) {
+                folderPaths.addAll(folders);
+            } else if (folderPath != null) {
+                folderPaths.add(folderPath);
+            }
+            return;
+        }
+        expect('}');
+    }
+
+    private List<String> readStrings() throws IOException {
+        List<String> values = new ArrayList<>();
+        expect('[');
+        if (consume(']')) {
+            return values;
+        }
+        do {
+            if (peek() == '"') {
+                values.add(readString());
+            } else {
+                skipValue();
+            }
+        } while (consume(','));
+        expect(']');
+        return values;
+    }
+
+    private void readFiles(EntryHandler handler) throws IOException {
+        expect('[');
+        if (consume(']')) {
+            return;
+        }
+        do {
+            String fileName = null;
+            int folder = 0;
+            String path = null;
+            double gain = Double.NaN;
+            expect('{');
+            if (peek() != '}') {
+                do {
+                    String key = readString();
+                    expect(':');
+                    if (key.equals("fileName") && peek() == '"') {
+                        fileName = readString();
+                    } else if (key.equals("folder")) {
+                        folder = (int) readNumber();
+                    } else if (key.equals("path") && peek() == '"') {
+                        path = readString();
+                    } else if (key.equals("Gain")) {
+                        gain = readNumber();
+                    } else {
+                        skipValue();
+                    }
+                } while (consume(','));
+            }
+            expect('}');
+            if (fileName != null && !Double.isNaN(gain)) {
+                handler.entry(fileName, folder, path, gain);
+            }
+        } while (consume(','));
+        expect(']');
+    }
+
+    private void skipValue() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            int close = c == '{' ? '}' : ']';
+            next = in.read();
+            if (consume(close)) {
+                return;
+            }
+            do {
+                if (c == '{') {
+                    readString();
+                    expect(':');
+                }
+                skipValue();
+            } while (consume(','));
+            expect(close);
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            readNumber();
+        } else {
+            skipLiteral();
+        }
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        for (int c = next; ; c = in.read()) {
+            if (c == -1) {
+                throw new IOException("Unterminated string");
+            } else if (c == '"') {
+                break;
+            } else if (c == '\\') {
+                int e = in.read();
+                switch (e) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            hex[i] = (char) in.read();
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IOException("Bad escape \\u" + new String(hex));
+                        }
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        value.append((char) e);
+                        break;
+                    default:
+                        throw new IOException("Bad escape \\" + (char) e);
+                }
+            } else {
+                value.append((char) c);
+            }
+        }
+        next = in.read();
+        return value.toString();
+    }
+
+    private double readNumber() throws IOException {
+        skipWhitespace();
+        StringBuilder value = new StringBuilder();
+        while (next == '-' || next == '+' || next == '.' || next == 'e' || next == 'E' || (next >= '0' && next <= '9')) {
+            value.append((char) next);
+            next = in.read();
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad number '" + value + "'");
+        }
+    }
+
+    // Skips true, false or null.
+    private void skipLiteral() throws IOException {
+        skipWhitespace();
+        StringBuilder value = new StringBuilder();
+        while (next >= 'a' && next <= 'z') {
+            value.append((char) next);
+            next = in.read();
+        }
+        String literal = value.toString();
+        if (!literal.equals("true") && !literal.equals("false") && !literal.equals("null")) {
+            throw new IOException("Unexpected '" + (literal.isEmpty() ? next == -1 ? "end of file" : String.valueOf((char) next) : literal) + "'");
+        }
+    }
+
+    private int peek() throws IOException {
+        skipWhitespace();
+        return next;
+    }
+
+    private boolean consume(int c) throws IOException {
+        if (peek() != c) {
+            return false;
+        }
+        next = in.read();
+        return true;
+    }
+
+    private void expect(int c) throws IOException {
+        if (!consume(c)) {
+            throw new IOException("Expected '" + (char) c + "' but found " + (next == -1 ? "end of file" : "'" + (char) next + "'"));
+        }
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (next == ' ' || next == '\n' || next == '\r' || next == '\t') {
+            next = in.read();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
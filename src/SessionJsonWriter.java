@@ -0,0 +1,129 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.List;
+import java.util.Locale;
+
+// Writes the gain export format one entry at a time, so exporting a catalog never holds the document in
+// memory. "path" is the file's path relative to the folder and lets the reader tell apart files that
+// share a name in different subfolders; older readers only look at "fileName".
+//
+// A library of several folders lists them all in "folders", and entries outside the first one give the
+// index of theirs in "folder". The first folder is also written as "folderPath" for older readers.
+class SessionJsonWriter implements Closeable {
+    private final Writer out;
+    // The JSON number format must not depend on the user's locale
+    private final DecimalFormat gainFormat = new DecimalFormat("#.##", DecimalFormatSymbols.getInstance(Locale.ROOT));
+    private boolean firstEntry = true;
+
+    SessionJsonWriter(File file, String folderPath) throws IOException {
+        this(file, List.of(folderPath));
+    }
+
+    SessionJsonWriter(File file, List<String> folderPaths) throws IOException {
+        this(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8), folderPaths);
+    }
+
+    SessionJsonWriter(Writer out, String folderPath) throws IOException {
+        this(out, List.of(folderPath));
+    }
+
+    SessionJsonWriter(Writer out, List<String> folderPaths) throws IOException {
+        this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out);
+        this.out.write("{\n");
+        if (!folderPaths.isEmpty()) {
+            this.out.write("  \"folderPath\": ");
+            writeString(folderPaths.get(0));
+            this.out.write(",\n");
+        }
+        if (folderPaths.size() > 1) {
+            this.out.write("  \"folders\": [\n");
+            for (int i = 0; i < folderPaths.size(); i++) {
+                this.out.write("    ");
+                writeString(folderPaths.get(i));
+                this.out.write(i < folderPaths.size() - 1 ? ",\n" : "\n");
+            }
+            this.out.write("  ],\n");
+        }
+        this.out.write("  \"files\": [\n");
+    }
+
+    // path may be null for files that aren't under the folder.
+    void add(String fileName, String path, double gain) throws IOException {
+        add(fileName, 0, path, gain);
+    }
+
+    // folder indexes the list given to the constructor, and path is relative to that folder.
+    void add(String fileName, int folder, String path, double gain) throws IOException {
+        if (!firstEntry) {
+            out.write(",\n");
+        }
+        firstEntry = false;
+        out.write("    {\n");
+        out.write("      \"fileName\": ");
+        writeString(fileName);
+        out.write(",\n");
+        if (folder > 0) {
+            out.write("      \"folder\": ");
+            out.write(Integer.toString(folder));
+            out.write(",\n");
+        }
+        if (path != null) {
+            out.write("      \"path\": ");
+            writeString(path);
+            out.write(",\n");
+        }
+        out.write("      \"Gain\": ");
+        out.write(gainFormat.format(gain));
+        out.write("\n    }");
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.write(firstEntry ? "  ]\n}" : "\n  ]\n}");
+        out.close();
+    }
+
+    private void writeString(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
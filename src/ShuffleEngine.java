@@ -0,0 +1,149 @@
+import java.util.Random;
+import java.util.function.IntToDoubleFunction;
+
+// Draws the play order lazily with an incremental Fisher-Yates over the model's row permutation: rows
+// before the frontier are fixed, the rows after it are the pool still to be drawn. Each step swaps one
+// random pool row into place, so moving on costs O(1) and starting a new pass costs nothing up front.
+//
+// The tracks that closed a pass are kept out of the start of the next one, so a track never plays twice
+// in a row across the boundary. Runs on the EDT like the model.
+class ShuffleEngine {
+    enum Mode {
+        RANDOM("Random"),
+        FOLDER_SPREAD("Spread folders"),
+        LOUDNESS_WEIGHTED("Loudness weighted");
+
+        final String label;
+
+        Mode(String label) {
+            this.label = label;
+        }
+    }
+
+    // Rows past the playing one that are always drawn, so the engine's prefetch never reads a row that
+    // is about to be swapped
+    static final int LOOKAHEAD = 3;
+    static final int NO_REPEAT_WINDOW = 16;
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final TrackTableModel model;
+    private final Random random;
+    private Mode mode = Mode.RANDOM;
+    private IntToDoubleFunction weight = id -> 1.0;
+    private double maxWeight = 1.0;
+    private int frontier = 0;
+
+    // Ids that ended the previous pass, flagged by id
+    private boolean[] recent = new boolean[0];
+    private int recentLimit = 0;
+
+    ShuffleEngine(TrackTableModel model, Random random) {
+        this.model = model;
+        this.random = random;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    // weight maps a track id to a value in (0, maxWeight]; it is only consulted in LOUDNESS_WEIGHTED mode.
+    // A new mode applies to the rows that haven't been drawn yet.
+    void setMode(Mode mode, IntToDoubleFunction weight, double maxWeight) {
+        this.mode = mode;
+        this.weight = weight;
+        this.maxWeight = maxWeight;
+    }
+
+    int getFrontier() {
+        return frontier;
+    }
+
+    // Fixes the order up to and including row. Rows the user jumped over keep their place.
+    void playFrom(int row) {
+        frontier = Math.max(frontier, Math.min(row + 1, model.getRowCount()));
+        ensureDrawn(row + LOOKAHEAD);
+    }
+
+    // Draws rows frontier..row, firing one update event for the touched range.
+    void ensureDrawn(int row) {
+        int n = model.getRowCount();
+        int last = Math.min(row, n - 1);
+        if (frontier > last) {
+            return;
+        }
+        int first = frontier;
+        int highest = last;
+        for (; frontier <= last; frontier++) {
+            int picked = pick(frontier, n);
+            if (picked != frontier) {
+                model.swapRows(frontier, picked);
+                highest = Math.max(highest, picked);
+            }
+        }
+        if (frontier >= recentLimit && recentLimit > 0) {
+            recent = new boolean[0];
+            recentLimit = 0;
+        }
+        // Swapped-in rows can lie anywhere in the pool, so report from the first drawn row up to the furthest
+        model.fireTableRowsUpdated(first, highest);
+    }
+
+    // Keeps the frontier on the same drawn rows after the model removed rows (ascending, old positions).
+    void rowsRemoved(int[] rows) {
+        int before = 0;
+        while (before < rows.length && rows[before] < frontier) {
+            before++;
+        }
+        frontier -= before;
+    }
+
+    // Starts the next pass. Nothing is reshuffled here; the pool is simply the whole list again, minus the
+    // tracks that just played for the first few draws.
+    void newPass() {
+        int n = model.getRowCount();
+        int window = Math.min(NO_REPEAT_WINDOW, n / 2);
+        recent = new boolean[model.idLimit()];
+        for (int row = n - window; row < n; row++) {
+            recent[model.idAt(row)] = true;
+        }
+        recentLimit = window;
+        frontier = 0;
+    }
+
+    private int pick(int position, int n) {
+        int remaining = n - position;
+        if (remaining <= 1) {
+            return position;
+        }
+        int previousDir = position > 0 && mode == Mode.FOLDER_SPREAD ? model.dirIdOf(model.idAt(position - 1)) : -1;
+        int candidate = position;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            candidate = position + random.nextInt(remaining);
+            int id = model.idAt(candidate);
+            if (isRecent(position, id)) {
+                continue;
+            }
+            boolean lastAttempt = attempt == MAX_ATTEMPTS - 1;
+            if (previousDir >= 0 && !lastAttempt && previousDir == model.dirIdOf(id)) {
+                continue;
+            }
+            // Rejection sampling keeps the draw proportional to the weight without touching the whole pool
+            if (mode == Mode.LOUDNESS_WEIGHTED && !lastAttempt && random.nextDouble() * maxWeight > weight.applyAsDouble(id)) {
+                continue;
+            }
+            return candidate;
+        }
+        // Only the no-repeat rule is hard; the window is at most half the list, so a scan always finds a track
+        for (int i = 0; i < remaining; i++) {
+            int row = position + (candidate - position + i) % remaining;
+            if (!isRecent(position, model.idAt(row))) {
+                return row;
+            }
+        }
+        return candidate;
+    }
+
+    private boolean isRecent(int position, int id) {
+        return position < recentLimit && id < recent.length && recent[id];
+    }
+}
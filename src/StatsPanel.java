@@ -0,0 +1,76 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+// Live view of PlaybackStats, refreshed twice a second while the window is open.
+class StatsPanel extends JPanel {
+    private static final int REFRESH_MILLIS = 500;
+
+    private final PlaybackStats stats;
+    private final JLabel switches = new JLabel();
+    private final JLabel switchLatency = new JLabel();
+    private final JLabel lineFill = new JLabel();
+    private final JLabel underruns = new JLabel();
+    private final JLabel decode = new JLabel();
+    private final JLabel threads = new JLabel();
+    private final Timer timer = new Timer(REFRESH_MILLIS, e -> refresh());
+
+    StatsPanel(PlaybackStats stats) {
+        super(new BorderLayout(0, 8));
+        this.stats = stats;
+        setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+
+        JPanel grid = new JPanel(new GridLayout(0, 2, 12, 4));
+        addRow(grid, "Track switches", switches);
+        addRow(grid, "Switch latency (last / avg / max)", switchLatency);
+        addRow(grid, "Line fill (now / min)", lineFill);
+        addRow(grid, "Underruns / decoder stalls", underruns);
+        addRow(grid, "Decode per chunk (avg / max)", decode);
+        addRow(grid, "Decoder / JVM threads", threads);
+        add(grid, BorderLayout.CENTER);
+
+        JButton reset = new JButton("Reset");
+        reset.addActionListener(e -> {
+            stats.reset();
+            refresh();
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 0, 0));
+        buttons.add(reset);
+        add(buttons, BorderLayout.SOUTH);
+        refresh();
+    }
+
+    static void showDialog(JFrame owner, PlaybackStats stats) {
+        StatsPanel panel = new StatsPanel(stats);
+        JDialog dialog = new JDialog(owner, "Playback Stats", false);
+        dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        dialog.add(panel);
+        dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                panel.timer.stop();
+            }
+        });
+        dialog.pack();
+        dialog.setLocationRelativeTo(owner);
+        panel.timer.start();
+        dialog.setVisible(true);
+    }
+
+    private static void addRow(JPanel grid, String name, JLabel value) {
+        grid.add(new JLabel(name));
+        grid.add(value);
+    }
+
+    private void refresh() {
+        switches.setText(String.valueOf(stats.getTrackSwitches()));
+        switchLatency.setText(String.format("%.1f / %.1f / %.1f ms", stats.getSwitchLatencyLastMillis(),
+                stats.getSwitchLatencyAverageMillis(), stats.getSwitchLatencyMaxMillis()));
+        lineFill.setText(String.format("%.0f%% / %.0f%% of %.0f ms", stats.getLineFillPercent(),
+                stats.getLineFillMinPercent(), stats.getLineBufferMillis()));
+        underruns.setText(stats.getUnderruns() + " / " + stats.getDecoderStalls());
+        decode.setText(String.format("%.0f / %.0f \u00b5s", stats.getDecodeChunkAverageMicros(), stats.getDecodeChunkMaxMicros()));
+        threads.setText(stats.getDecoderThreads() + " / " + stats.getThreadCount());
+    }
+}
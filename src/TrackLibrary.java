@@ -0,0 +1,244 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// The folders mounted into the track list. Each root has its own LibraryIndex, which holds that root's
+// gains and is only read once the root's scan starts, plus its own FolderScanner and LibraryWatcher, so
+// roots come and go independently.
+//
+// Files from every root pass through unique() before they reach the list, which drops identical copies.
+// Only files whose size matches another file already seen get hashed, and hashes are cached in the index,
+// so a library without duplicates never reads a file for this.
+class TrackLibrary {
+    static class Root {
+        final LibraryIndex index;
+        private FolderScanner scanner;
+        private LibraryWatcher watcher;
+
+        private Root(LibraryIndex index) {
+            this.index = index;
+        }
+
+        File folder() {
+            return index.root.toFile();
+        }
+    }
+
+    private static final int HASH_BUFFER_BYTES = 1 << 16;
+
+    private final Consumer<List<File>> onFiles;
+    private final BiConsumer<Root, LibraryWatcher.Changes> onChanges;
+    private final List<Root> roots = new CopyOnWriteArrayList<>();
+    // The first file seen of each size, and of each hash among files whose size collided
+    private final Map<Long, File> bySize = new ConcurrentHashMap<>();
+    private final Map<Long, File> byHash = new ConcurrentHashMap<>();
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    // onFiles receives batches of new files as the scanners find them, and onChanges what each root's
+    // watcher saw, both from background threads and with duplicates already dropped.
+    TrackLibrary(Consumer<List<File>> onFiles, BiConsumer<Root, LibraryWatcher.Changes> onChanges) {
+        this.onFiles = onFiles;
+        this.onChanges = onChanges;
+    }
+
+    // Starts scanning and watching folder. Returns null if it is already mounted.
+    Root mount(File folder) {
+        Root root = attach(folder);
+        if (root != null) {
+            start(root);
+        }
+        return root;
+    }
+
+    // Adds folder with its index but doesn't scan or watch it until start, so tracks remembered in the
+    // index can be looked up before the scan competes with them for the disk.
+    Root attach(File folder) {
+        Path path = folder.toPath().toAbsolutePath().normalize();
+        for (Root root : roots) {
+            if (root.index.root.equals(path)) {
+                return null;
+            }
+        }
+        Root root = new Root(LibraryIndex.open(folder));
+        root.scanner = new FolderScanner(root.index, batch -> {
+            List<File> files = unique(batch);
+            if (!files.isEmpty()) {
+                onFiles.accept(files);
+            }
+        });
+        root.watcher = new LibraryWatcher(root.index, changes -> {
+            changes.changed.retainAll(unique(changes.changed));
+            if (!changes.isEmpty()) {
+                onChanges.accept(root, changes);
+            }
+        });
+        roots.add(root);
+        return root;
+    }
+
+    void start(Root root) {
+        root.scanner.start();
+        root.watcher.start();
+    }
+
+    void unmount(Root root) {
+        roots.remove(root);
+        root.scanner.cancel();
+        root.watcher.cancel();
+    }
+
+    void unmountAll() {
+        for (Root root : roots) {
+            unmount(root);
+        }
+    }
+
+    List<Root> roots() {
+        return roots;
+    }
+
+    boolean isMounted(Root root) {
+        return roots.contains(root);
+    }
+
+    // The innermost mounted root the file is under, or null.
+    Root rootOf(File file) {
+        Path path = file.toPath();
+        Root best = null;
+        for (Root root : roots) {
+            if (path.startsWith(root.index.root) && (best == null || root.index.root.startsWith(best.index.root))) {
+                best = root;
+            }
+        }
+        return best;
+    }
+
+    LibraryIndex indexOf(File file) {
+        Root root = rootOf(file);
+        return root == null ? null : root.index;
+    }
+
+    LibraryIndex.Entry entry(File file) {
+        LibraryIndex index = indexOf(file);
+        return index == null ? null : index.get(file);
+    }
+
+    boolean isScanned(Root root) {
+        return root.scanner.isDone();
+    }
+
+    boolean isScanning() {
+        for (Root root : roots) {
+            if (!root.scanner.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getFound() {
+        int found = 0;
+        for (Root root : roots) {
+            found += root.scanner.getFound();
+        }
+        return found;
+    }
+
+    int getDuplicates() {
+        return duplicates.get();
+    }
+
+    private List<File> unique(List<File> files) {
+        List<File> unique = new ArrayList<>(files.size());
+        for (File file : files) {
+            if (isDuplicate(file)) {
+                duplicates.incrementAndGet();
+            } else {
+                unique.add(file);
+            }
+        }
+        return unique;
+    }
+
+    private boolean isDuplicate(File file) {
+        long size = file.length();
+        File first = bySize.putIfAbsent(size, file);
+        if (first == null || first.equals(file)) {
+            return false;
+        }
+        if (!isLive(first)) {
+            bySize.replace(size, first, file);
+            return false;
+        }
+        long firstHash = contentHash(first);
+        long hash = contentHash(file);
+        if (firstHash == 0 || hash == 0) {
+            return false;
+        }
+        byHash.putIfAbsent(firstHash, first);
+        File original = byHash.putIfAbsent(hash, file);
+        if (original == null || original.equals(file)) {
+            return false;
+        }
+        if (!isLive(original)) {
+            byHash.replace(hash, original, file);
+            return false;
+        }
+        return true;
+    }
+
+    // Deleted files and files of roots that were removed no longer count as originals.
+    private boolean isLive(File file) {
+        return rootOf(file) != null && file.exists();
+    }
+
+    // SHA-256 of the whole file cut to 64 bits, or 0 if it can't be read. Cached in the index entry.
+    private long contentHash(File file) {
+        LibraryIndex index = indexOf(file);
+        LibraryIndex.Entry entry = index == null ? null : index.getValid(file);
+        if (entry != null && entry.hash != 0) {
+            return entry.hash;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_BYTES);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            long hash = ByteBuffer.wrap(digest.digest()).getLong();
+            hash = hash == 0 ? 1 : hash;
+            // A stale entry is left alone, so the analyzer still sees that the file changed
+            if (entry == null && index != null && index.get(file) == null) {
+                entry = new LibraryIndex.Entry(attributes.size(), attributes.lastModifiedTime().toMillis());
+                index.put(file, entry);
+            }
+            if (entry != null) {
+                entry.hash = hash;
+            }
+            return hash;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println(file + ": " + e.getMessage());
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+// A track that is opened and decoded ahead of the playhead on a worker thread. The audio thread only
+// ever reads from the ring, so file-open and disk latency stay off the playback path.
+class TrackStream implements AutoCloseable {
+    static final double BUFFER_SECONDS = 2.0;
+    private static final int CHUNK_FRAMES = 1024;
+
+    final int index;
+    final File file;
+    final long startFrame;
+    // The format the ring is filled in, or null for the file's own
+    final AudioFormat outputFormat;
+    private final CountDownLatch opened = new CountDownLatch(1);
+    private volatile AudioFormat format;
+    private volatile long frameLength = AudioSystem.NOT_SPECIFIED;
+    private volatile Exception error;
+    private volatile ByteRingBuffer ring;
+    private volatile boolean closed = false;
+    private final PlaybackStats stats;
+
+    private TrackStream(int index, File file, long startFrame, AudioFormat outputFormat, PlaybackStats stats) {
+        this.index = index;
+        this.file = file;
+        this.startFrame = startFrame;
+        this.outputFormat = outputFormat;
+        this.stats = stats;
+    }
+
+    static TrackStream open(int index, File file, Executor decoder) {
+        return open(index, file, 0, null, decoder, null);
+    }
+
+    // With an outputFormat, the track is converted to it on the decoder thread and startFrame counts frames
+    // of that format. stats, if given, receives the time spent producing each chunk.
+    static TrackStream open(int index, File file, long startFrame, AudioFormat outputFormat, Executor decoder, PlaybackStats stats) {
+        TrackStream track = new TrackStream(index, file, startFrame, outputFormat, stats);
+        decoder.execute(track::fill);
+        return track;
+    }
+
+    private void fill() {
+        WavFile wav;
+        try {
+            wav = WavFile.open(file);
+        } catch (UnsupportedAudioFileException | IOException e) {
+            wav = null;
+        }
+        if (wav != null && (outputFormat == null || wav.format.matches(outputFormat))) {
+            fillMapped(wav);
+        } else {
+            fillDecoded();
+        }
+    }
+
+    // Plain PCM WAVs are copied from the file mapping straight into the ring.
+    private void fillMapped(WavFile wav) {
+        try {
+            int frames = (int) Math.max(4096, wav.format.getFrameRate() * BUFFER_SECONDS);
+            ByteRingBuffer buffer = new ByteRingBuffer(frames * wav.frameSize);
+            ring = buffer;
+            frameLength = wav.frameCount;
+            format = wav.format;
+            opened.countDown();
+            if (closed) {
+                buffer.close();
+                return;
+            }
+
+            int chunkBytes = CHUNK_FRAMES * wav.frameSize;
+            byte[] chunk = new byte[chunkBytes];
+            for (long frame = startFrame; frame < wav.frameCount; frame += CHUNK_FRAMES) {
+                if (!buffer.awaitSpace(chunkBytes)) {
+                    return;
+                }
+                // Copying out of the mapping is where the pages are faulted in, so this is the read time. It
+                // happens before the ring's lock is taken, so a slow disk never holds up the audio thread's poll
+                long start = System.nanoTime();
+                ByteBuffer mapped = wav.frames(frame, CHUNK_FRAMES);
+                int length = mapped.remaining();
+                mapped.get(chunk, 0, length);
+                if (!buffer.write(chunk, 0, length)) {
+                    return;
+                }
+                chunkDone(start);
+            }
+            buffer.finish();
+        } catch (RuntimeException | Error e) {
+            // A file truncated or rewritten under the mapping faults on the copy (an InternalError); ending the
+            // ring lets the engine move on instead of waiting for bytes that never come
+            System.out.println(file + ": stopped reading: " + e);
+            error = new IOException("Could not read " + file, e);
+            if (ring != null) {
+                ring.finish();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            opened.countDown();
+        }
+    }
+
+    // Everything else goes through its decoder, which hands over PCM in the reused chunk array.
+    private void fillDecoded() {
+        try (AudioInputStream decoded = PcmCodec.openPcm(file)) {
+            AudioInputStream in = decoded;
+            long skipFrames = startFrame;
+            boolean convert = outputFormat != null && !decoded.getFormat().matches(outputFormat)
+                    && FormatConverter.canConvert(decoded.getFormat(), outputFormat);
+            if (convert) {
+                // Seek in the source, which is far cheaper than converting and throwing the result away
+                skipFrames = Math.round(startFrame * (double) decoded.getFormat().getFrameRate() / outputFormat.getFrameRate());
+            }
+            int sourceFrameSize = Math.max(1, decoded.getFormat().getFrameSize());
+            for (long skip = skipFrames * sourceFrameSize; skip > 0; ) {
+                long skipped = decoded.skip(skip);
+                if (skipped <= 0) {
+                    break;
+                }
+                skip -= skipped;
+            }
+            if (convert) {
+                in = FormatConverter.convert(decoded, outputFormat);
+            }
+            AudioFormat inFormat = in.getFormat();
+            int frameSize = Math.max(1, inFormat.getFrameSize());
+            int frames = (int) Math.max(4096, inFormat.getFrameRate() * BUFFER_SECONDS);
+            ByteRingBuffer buffer = new ByteRingBuffer(frames * frameSize);
+            ring = buffer;
+            frameLength = in.getFrameLength();
+            format = inFormat;
+            opened.countDown();
+            if (closed) {
+                buffer.close();
+                return;
+            }
+
+            byte[] chunk = new byte[frameSize * CHUNK_FRAMES];
+            while (buffer.awaitSpace(chunk.length)) {
+                long start = System.nanoTime();
+                int bytesRead = in.read(chunk, 0, chunk.length);
+                if (bytesRead == -1) {
+                    break;
+                }
+                if (!buffer.write(chunk, 0, bytesRead)) {
+                    return;
+                }
+                chunkDone(start);
+            }
+            buffer.finish();
+        } catch (UnsupportedAudioFileException | IOException | IllegalArgumentException e) {
+            error = e instanceof IllegalArgumentException ? new UnsupportedAudioFileException(e.getMessage()) : e;
+            if (ring != null) {
+                ring.finish();
+            }
+        } catch (RuntimeException | Error e) {
+            // Decoders can throw anything on a corrupt stream; ending the ring lets the engine skip the track
+            System.out.println(file + ": stopped decoding: " + e);
+            error = new IOException("Could not decode " + file, e);
+            if (ring != null) {
+                ring.finish();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            opened.countDown();
+        }
+    }
+
+    private void chunkDone(long start) {
+        if (stats != null) {
+            stats.decodeChunk(System.nanoTime() - start);
+        }
+    }
+
+    // Waits for the file to be opened and returns its format.
+    AudioFormat getFormat() throws UnsupportedAudioFileException, IOException, InterruptedException {
+        opened.await();
+        if (format == null) {
+            if (error instanceof UnsupportedAudioFileException) {
+                throw (UnsupportedAudioFileException) error;
+            }
+            throw error instanceof IOException ? (IOException) error : new IOException("Could not open " + file);
+        }
+        return format;
+    }
+
+    // Length of the whole file in frames, or AudioSystem.NOT_SPECIFIED. Valid once the track is opened.
+    long getFrameLength() {
+        return frameLength;
+    }
+
+    boolean isOpened() {
+        return opened.getCount() == 0;
+    }
+
+    // Non-blocking: returns 0 while the file is still being opened or the decoder is behind, -1 at the end.
+    int poll(byte[] b, int off, int len) {
+        if (!isOpened()) {
+            return 0;
+        }
+        ByteRingBuffer buffer = ring;
+        return buffer == null ? -1 : buffer.poll(b, off, len, Math.max(1, format.getFrameSize()));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ByteRingBuffer buffer = ring;
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+}
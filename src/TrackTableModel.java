@@ -0,0 +1,354 @@
+import javax.swing.table.AbstractTableModel;
+import java.io.File;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Track list backed by primitive arrays. Tracks keep a stable id in the order they were added; rows are
+// a permutation over those ids (see ShuffleEngine), so shuffling only moves ints and never copies files
+// or gains.
+//
+// Paths are stored as an interned directory plus a file name, and the file-to-id lookup is an open
+// addressing table of ints, so a library of many folders costs a few words per track rather than a File,
+// its path string and a map node.
+//
+// Mutations happen on the EDT. The audio thread reads through getFile/getGain; arrays are grown before
+// the volatile size is published, so a reader that sees a row count also sees arrays large enough for it.
+class TrackTableModel extends AbstractTableModel {
+    private static final String[] COLUMN_NAMES = {"Wav File", "Gain", "Waveform"};
+    static final int WAVEFORM_COLUMN = 2;
+
+    private final DecimalFormat gainFormat = new DecimalFormat("#.#");
+    private final Map<String, Integer> dirIds = new HashMap<>();
+    private String[] dirs = new String[0];
+    private int dirCount = 0;
+    private int[] dirOf = new int[0];
+    private String[] names = new String[0];
+    private double[] gains = new double[0];
+    private boolean[] manual = new boolean[0];
+    private float[] truePeaks = new float[0];
+    private int[] order = new int[0];
+    private int[] rowOfId = new int[0];
+    private int nextId = 0;
+    private volatile int size = 0;
+    // id + 1 per slot, 0 for empty; at most half full
+    private int[] slots = new int[16];
+    private int live = 0;
+    // Directories matching the current search, by directory id; null when not searching
+    private boolean[] dirMatches;
+    private String query;
+
+    @Override
+    public int getRowCount() {
+        return size;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int id = order[row];
+        if (column == WAVEFORM_COLUMN) {
+            return getFileById(id);
+        }
+        return column == 0 ? names[id] : gainFormat.format(gains[id]);
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    File getFile(int row) {
+        return getFileById(order[row]);
+    }
+
+    double getGain(int row) {
+        return gains[order[row]];
+    }
+
+    boolean isManual(int row) {
+        return manual[order[row]];
+    }
+
+    // Returns the row currently holding the file, or -1.
+    int rowOf(File file) {
+        Integer dirId = dirIds.get(file.getParent());
+        if (dirId == null) {
+            return -1;
+        }
+        int slot = find(dirId, file.getName());
+        return slots[slot] == 0 ? -1 : rowOfId[slots[slot] - 1];
+    }
+
+    void setGain(int row, double gain, boolean manualGain) {
+        int id = order[row];
+        gains[id] = gain;
+        manual[id] = manualGain;
+        fireTableRowsUpdated(row, row);
+    }
+
+    // Sets manual gains for many rows with a single update event, so an import doesn't send one per row.
+    // rows and newGains are parallel; their first count elements are used.
+    void setManualGains(int[] rows, double[] newGains, int count) {
+        if (count == 0) {
+            return;
+        }
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            int id = order[rows[i]];
+            gains[id] = newGains[i];
+            manual[id] = true;
+            first = Math.min(first, rows[i]);
+            last = Math.max(last, rows[i]);
+        }
+        fireTableRowsUpdated(first, last);
+    }
+
+    void setManual(int row, boolean manualGain) {
+        manual[order[row]] = manualGain;
+    }
+
+    void setTruePeak(int row, float truePeak) {
+        truePeaks[order[row]] = truePeak;
+        fireTableRowsUpdated(row, row);
+    }
+
+    float getTruePeak(int row) {
+        return truePeaks[order[row]];
+    }
+
+    // How far the row's true peak goes over the limiter ceiling at its current gain, in dB. Positive means
+    // the limiter has to pull the track down; NaN until the true peak is measured.
+    double overCeiling(int row) {
+        int id = order[row];
+        return truePeaks[id] + gains[id] - GainStage.CEILING_DB;
+    }
+
+    boolean clips(int row) {
+        return overCeiling(row) > 0;
+    }
+
+    void append(List<File> newFiles, double[] newGains, boolean[] newManual) {
+        append(newFiles, newGains, newManual, null);
+    }
+
+    // Appends tracks at the end, where the shuffle engine draws from, firing a single insert event.
+    // newTruePeaks may be null when none are known yet.
+    void append(List<File> newFiles, double[] newGains, boolean[] newManual, float[] newTruePeaks) {
+        int oldSize = size;
+        int newSize = oldSize + newFiles.size();
+        ensureCapacity(nextId + newFiles.size());
+        for (int i = 0; i < newFiles.size(); i++) {
+            int id = nextId++;
+            File file = newFiles.get(i);
+            dirOf[id] = intern(file.getParent());
+            names[id] = file.getName();
+            gains[id] = newGains[i];
+            manual[id] = newManual[i];
+            truePeaks[id] = newTruePeaks == null ? Float.NaN : newTruePeaks[i];
+            insert(id);
+            order[oldSize + i] = id;
+            rowOfId[id] = oldSize + i;
+        }
+        size = newSize;
+        fireTableRowsInserted(oldSize, newSize - 1);
+    }
+
+    // Removes rows (ascending) in one pass; the rows after them move up. Ids of removed tracks are never
+    // reused, so anything keyed by id stays valid. The size shrinks first, so the audio thread never reads
+    // past it while rows are moving.
+    void removeRows(int[] rows) {
+        if (rows.length == 0) {
+            return;
+        }
+        int oldSize = size;
+        size = oldSize - rows.length;
+        int next = 0;
+        int to = 0;
+        for (int row = 0; row < oldSize; row++) {
+            int id = order[row];
+            if (next < rows.length && rows[next] == row) {
+                next++;
+                delete(find(dirOf[id], names[id]));
+                rowOfId[id] = -1;
+                continue;
+            }
+            order[to] = id;
+            rowOfId[id] = to;
+            to++;
+        }
+        if (rows.length == 1) {
+            fireTableRowsDeleted(rows[0], rows[0]);
+        } else {
+            fireTableDataChanged();
+        }
+    }
+
+    // Points the row at the file's new name; gain and position stay.
+    void rename(int row, File file) {
+        int id = order[row];
+        delete(find(dirOf[id], names[id]));
+        dirOf[id] = intern(file.getParent());
+        names[id] = file.getName();
+        insert(id);
+        fireTableRowsUpdated(row, row);
+    }
+
+    // Every id handed out so far is below this.
+    int idLimit() {
+        return nextId;
+    }
+
+    int idAt(int row) {
+        return order[row];
+    }
+
+    File getFileById(int id) {
+        return new File(dirs[dirOf[id]], names[id]);
+    }
+
+    // Tracks in the same folder share a directory id.
+    int dirIdOf(int id) {
+        return dirOf[id];
+    }
+
+    double getGainById(int id) {
+        return gains[id];
+    }
+
+    // Callers fire the table event, so a run of swaps can be reported as one range.
+    void swapRows(int a, int b) {
+        int idA = order[a];
+        int idB = order[b];
+        order[a] = idB;
+        order[b] = idA;
+        rowOfId[idB] = a;
+        rowOfId[idA] = b;
+    }
+
+    // Sets the search text rows are matched against, case-insensitively, by file name or any part of the
+    // folder path. Each directory is checked once per search rather than once per track. Null clears it.
+    void setQuery(String text) {
+        if (text == null || text.isEmpty()) {
+            query = null;
+            dirMatches = null;
+            return;
+        }
+        query = text.toLowerCase(Locale.ROOT);
+        dirMatches = new boolean[dirs.length];
+        for (int dir = 0; dir < dirCount; dir++) {
+            dirMatches[dir] = dirs[dir] != null && dirs[dir].toLowerCase(Locale.ROOT).contains(query);
+        }
+    }
+
+    boolean matches(int row) {
+        if (query == null) {
+            return true;
+        }
+        int id = order[row];
+        return dirMatches[dirOf[id]] || names[id].toLowerCase(Locale.ROOT).contains(query);
+    }
+
+    private int intern(String dir) {
+        Integer id = dirIds.get(dir);
+        if (id != null) {
+            return id;
+        }
+        if (dirCount == dirs.length) {
+            dirs = Arrays.copyOf(dirs, Math.max(16, dirCount * 2));
+        }
+        dirs[dirCount] = dir;
+        dirIds.put(dir, dirCount);
+        // Folders found while a search is active are matched as they arrive
+        if (query != null) {
+            dirMatches = Arrays.copyOf(dirMatches, dirs.length);
+            dirMatches[dirCount] = dir != null && dir.toLowerCase(Locale.ROOT).contains(query);
+        }
+        return dirCount++;
+    }
+
+    // Returns the slot holding the file, or the empty slot where it would go.
+    private int find(int dir, String name) {
+        int mask = slots.length - 1;
+        int slot = hash(dir, name) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (dirOf[id] == dir && names[id].equals(name)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int id) {
+        if ((live + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        slots[find(dirOf[id], names[id])] = id + 1;
+        live++;
+    }
+
+    // Backward-shift deletion: later entries of the same probe run move up, so lookups need no tombstones.
+    private void delete(int slot) {
+        if (slots[slot] == 0) {
+            return;
+        }
+        int mask = slots.length - 1;
+        int hole = slot;
+        slots[hole] = 0;
+        live--;
+        for (int next = (hole + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            int id = slots[next] - 1;
+            int home = hash(dirOf[id], names[id]) & mask;
+            // Move the entry into the hole unless its home lies cyclically between the hole and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                slots[hole] = slots[next];
+                slots[next] = 0;
+                hole = next;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        for (int entry : old) {
+            if (entry != 0) {
+                slots[find(dirOf[entry - 1], names[entry - 1])] = entry;
+            }
+        }
+    }
+
+    private static int hash(int dir, String name) {
+        int h = dir * 0x9E3779B9 + name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= names.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, names.length * 2);
+        dirOf = Arrays.copyOf(dirOf, newCapacity);
+        names = Arrays.copyOf(names, newCapacity);
+        gains = Arrays.copyOf(gains, newCapacity);
+        manual = Arrays.copyOf(manual, newCapacity);
+        truePeaks = Arrays.copyOf(truePeaks, newCapacity);
+        order = Arrays.copyOf(order, newCapacity);
+        rowOfId = Arrays.copyOf(rowOfId, newCapacity);
+    }
+}
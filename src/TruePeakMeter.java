@@ -0,0 +1,61 @@
+import java.util.Arrays;
+
+// True peak as in ITU-R BS.1770-4 Annex 2: the signal is oversampled 4x with the standard's 48-tap
+// polyphase filter and the peak is taken over the oversampled values, which catches the inter-sample
+// overs a DAC produces between samples that are themselves below full scale.
+class TruePeakMeter {
+    private static final int TAPS = 12;
+    private static final float[][] PHASES = {
+            {0.0017089843750f, 0.0109863281250f, -0.0196533203125f, 0.0332031250000f, -0.0594482421875f, 0.1373291015625f,
+                    0.9721679687500f, -0.1022949218750f, 0.0476074218750f, -0.0266113281250f, 0.0148925781250f, -0.0083007812500f},
+            {-0.0291748046875f, 0.0292968750000f, -0.0517578125000f, 0.0891113281250f, -0.1665039062500f, 0.4650878906250f,
+                    0.7797851562500f, -0.2003173828125f, 0.1015625000000f, -0.0582275390625f, 0.0330810546875f, -0.0189208984375f},
+            {-0.0189208984375f, 0.0330810546875f, -0.0582275390625f, 0.1015625000000f, -0.2003173828125f, 0.7797851562500f,
+                    0.4650878906250f, -0.1665039062500f, 0.0891113281250f, -0.0517578125000f, 0.0292968750000f, -0.0291748046875f},
+            {-0.0083007812500f, 0.0148925781250f, -0.0266113281250f, 0.0476074218750f, -0.1022949218750f, 0.9721679687500f,
+                    0.1373291015625f, -0.0594482421875f, 0.0332031250000f, -0.0196533203125f, 0.0109863281250f, 0.0017089843750f},
+    };
+
+    private final SampleKernels kernels = SampleKernels.get();
+    private final int channels;
+    // Per channel, the last TAPS - 1 samples of the previous call followed by the current ones
+    private float[][] history;
+    private float peak = 0;
+    private boolean flushed = false;
+
+    TruePeakMeter(int channels) {
+        this.channels = channels;
+        history = new float[channels][TAPS - 1 + 4096];
+    }
+
+    void process(float[] samples, int count) {
+        int frames = count / channels;
+        if (history[0].length < TAPS - 1 + frames) {
+            for (int c = 0; c < channels; c++) {
+                history[c] = Arrays.copyOf(history[c], TAPS - 1 + frames);
+            }
+        }
+        float max = peak;
+        for (int c = 0; c < channels; c++) {
+            float[] h = history[c];
+            for (int i = 0, j = c; i < frames; i++, j += channels) {
+                h[TAPS - 1 + i] = samples[j];
+                max = Math.max(max, Math.abs(samples[j]));
+            }
+            for (float[] phase : PHASES) {
+                max = Math.max(max, kernels.firPeak(h, frames, phase));
+            }
+            System.arraycopy(h, frames, h, 0, TAPS - 1);
+        }
+        peak = max;
+    }
+
+    // In dBTP. Pushes the filter's tail through first, so the last samples are fully measured.
+    double truePeak() {
+        if (!flushed) {
+            flushed = true;
+            process(new float[(TAPS - 1) * channels], (TAPS - 1) * channels);
+        }
+        return peak > 0 ? 20 * Math.log10(peak) : Double.NEGATIVE_INFINITY;
+    }
+}
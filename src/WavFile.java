@@ -0,0 +1,245 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// RIFF/WAVE reader that memory-maps the sample data instead of going through AudioSystem's stream stack.
+// Handles PCM and IEEE float in plain fmt or WAVE_FORMAT_EXTENSIBLE, LIST/INFO tags, and RF64 files over
+// 4 GB. Seeking is just an offset into the mapping.
+//
+// open() throws UnsupportedAudioFileException for anything else (compressed formats, AIFF, ...), so callers
+// can fall back to AudioSystem.
+class WavFile {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    final File file;
+    final AudioFormat format;
+    final int frameSize;
+    final long frameCount;
+    private final Map<String, String> info;
+    private final MappedByteBuffer[] segments;
+    private final long segmentBytes;
+
+    private WavFile(File file, AudioFormat format, long frameCount, Map<String, String> info, MappedByteBuffer[] segments, long segmentBytes) {
+        this.file = file;
+        this.format = format;
+        this.frameSize = format.getFrameSize();
+        this.frameCount = frameCount;
+        this.info = info;
+        this.segments = segments;
+        this.segmentBytes = segmentBytes;
+    }
+
+    static WavFile open(File file) throws UnsupportedAudioFileException, IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            ByteBuffer header = readAt(channel, 0, 12);
+            String riff = chunkId(header, 0);
+            if ((!riff.equals("RIFF") && !riff.equals("RF64")) || !chunkId(header, 8).equals("WAVE")) {
+                throw new UnsupportedAudioFileException(file + " is not a RIFF/WAVE file");
+            }
+
+            AudioFormat format = null;
+            long dataOffset = -1;
+            long dataSize = -1;
+            long ds64DataSize = -1;
+            Map<String, String> info = new HashMap<>();
+            long position = 12;
+            while (position + 8 <= fileSize) {
+                ByteBuffer chunkHeader = readAt(channel, position, 8);
+                String id = chunkId(chunkHeader, 0);
+                long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+                long body = position + 8;
+                switch (id) {
+                    case "ds64":
+                        ds64DataSize = readAt(channel, body, 16).getLong(8);
+                        break;
+                    case "fmt ":
+                        format = parseFormat(file, readAt(channel, body, (int) Math.min(size, 40)));
+                        break;
+                    case "LIST":
+                        if (size >= 4 && size < (1 << 20)) {
+                            parseList(readAt(channel, body, (int) size), info);
+                        }
+                        break;
+                    case "data":
+                        dataOffset = body;
+                        dataSize = riff.equals("RF64") && size == 0xFFFFFFFFL && ds64DataSize >= 0 ? ds64DataSize : size;
+                        break;
+                    default:
+                        break;
+                }
+                if (id.equals("data")) {
+                    // Anything after the data is only tags, which aren't worth a seek on large files
+                    break;
+                }
+                position = body + size + (size & 1);
+            }
+            if (format == null || dataOffset < 0) {
+                throw new UnsupportedAudioFileException(file + " has no " + (format == null ? "fmt" : "data") + " chunk");
+            }
+
+            // Truncated recordings are common, so play what is actually there
+            int frameSize = format.getFrameSize();
+            long frameCount = Math.min(dataSize, fileSize - dataOffset) / frameSize;
+            long segmentBytes = SEGMENT_BYTES - SEGMENT_BYTES % frameSize;
+            long dataBytes = frameCount * frameSize;
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((dataBytes + segmentBytes - 1) / segmentBytes)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * segmentBytes;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start, Math.min(segmentBytes, dataBytes - start));
+            }
+            return new WavFile(file, format, frameCount, info, segments, segmentBytes);
+        }
+    }
+
+    // Returns a LIST/INFO tag such as "IART" or "INAM", or null.
+    String info(String id) {
+        return info.get(id);
+    }
+
+    // Returns a read-only view of up to maxFrames frames starting at frame, or an empty buffer past the end.
+    // A view never spans two mappings, so it can be shorter than asked for before the end of the file.
+    ByteBuffer frames(long frame, int maxFrames) {
+        if (frame >= frameCount) {
+            return ByteBuffer.allocate(0);
+        }
+        long offset = frame * frameSize;
+        int segment = (int) (offset / segmentBytes);
+        int start = (int) (offset - segment * segmentBytes);
+        ByteBuffer view = segments[segment].duplicate();
+        view.position(start);
+        view.limit((int) Math.min(view.capacity(), start + (long) maxFrames * frameSize));
+        return view.slice();
+    }
+
+    AudioInputStream openStream(long startFrame) {
+        return new AudioInputStream(new FrameStream(startFrame), format, Math.max(0, frameCount - startFrame));
+    }
+
+    private static AudioFormat parseFormat(File file, ByteBuffer fmt) throws UnsupportedAudioFileException {
+        if (fmt.limit() < 16) {
+            throw new UnsupportedAudioFileException(file + " has a truncated fmt chunk");
+        }
+        int tag = fmt.getShort(0) & 0xFFFF;
+        int channels = fmt.getShort(2) & 0xFFFF;
+        float sampleRate = fmt.getInt(4) & 0xFFFFFFFFL;
+        int blockAlign = fmt.getShort(12) & 0xFFFF;
+        int bits = fmt.getShort(14) & 0xFFFF;
+        if (tag == FORMAT_EXTENSIBLE && fmt.limit() >= 26) {
+            // The sub-format GUID starts with the plain format tag
+            tag = fmt.getShort(24) & 0xFFFF;
+        }
+        if ((tag != FORMAT_PCM && tag != FORMAT_FLOAT) || channels == 0 || bits == 0) {
+            throw new UnsupportedAudioFileException(file + " uses WAVE format " + tag);
+        }
+        // The container size decides the frame layout; valid bits below it are just zero padding
+        int containerBits = blockAlign / channels * 8;
+        if (containerBits == 0 || blockAlign % channels != 0) {
+            throw new UnsupportedAudioFileException(file + " has an invalid block alignment");
+        }
+        AudioFormat.Encoding encoding = tag == FORMAT_FLOAT ? AudioFormat.Encoding.PCM_FLOAT
+                : containerBits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+        AudioFormat format = new AudioFormat(encoding, sampleRate, containerBits, channels, blockAlign, sampleRate, false);
+        if (!PcmCodec.isSupported(format)) {
+            throw new UnsupportedAudioFileException(file + " has unsupported sample size " + bits);
+        }
+        return format;
+    }
+
+    private static void parseList(ByteBuffer list, Map<String, String> info) {
+        if (!chunkId(list, 0).equals("INFO")) {
+            return;
+        }
+        int position = 4;
+        while (position + 8 <= list.limit()) {
+            String id = chunkId(list, position);
+            int size = list.getInt(position + 4);
+            int body = position + 8;
+            if (size < 0 || body + size > list.limit()) {
+                return;
+            }
+            int length = size;
+            while (length > 0 && list.get(body + length - 1) == 0) {
+                length--;
+            }
+            byte[] text = new byte[length];
+            list.get(body, text);
+            info.put(id, new String(text, StandardCharsets.UTF_8).trim());
+            position = body + size + (size & 1);
+        }
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                // Truncated file: the missing bytes read as zeros
+                break;
+            }
+        }
+        return buffer.clear();
+    }
+
+    private static String chunkId(ByteBuffer buffer, int offset) {
+        byte[] id = new byte[4];
+        buffer.get(offset, id);
+        return new String(id, StandardCharsets.US_ASCII);
+    }
+
+    // Streams the mapping for code that wants an AudioInputStream; skip() is a pointer move.
+    private class FrameStream extends InputStream {
+        private long position;
+
+        FrameStream(long startFrame) {
+            position = Math.min(startFrame, frameCount) * frameSize;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            long end = frameCount * frameSize;
+            if (position >= end) {
+                return -1;
+            }
+            int segment = (int) (position / segmentBytes);
+            int start = (int) (position - segment * segmentBytes);
+            ByteBuffer view = segments[segment].duplicate();
+            int count = Math.min(len, view.capacity() - start);
+            view.position(start);
+            view.get(b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, frameCount * frameSize - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, frameCount * frameSize - position);
+        }
+    }
+}
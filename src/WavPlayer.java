@@ -1,76 +1,415 @@
 import javax.sound.sampled.*;
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableColumn;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
+import java.net.InetAddress;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.prefs.Preferences;
 import javax.swing.JFileChooser;
 import javax.sound.sampled.SourceDataLine;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import javax.swing.Timer;
 
 public class WavPlayer {
-    private static List<File> wavFiles;
+    private static volatile TrackTableModel tracks = new TrackTableModel();
     private static JTable wavTable;
+    // Created with the window, as it pulls in the imaging classes
+    private static WaveformThumbnails thumbnails;
 //    private static Clip currentClip;
 
-    private static SourceDataLine currentLine;
+    private static volatile int currentPlayingIndex = 0;
+    private static int highlightedRow = -1;
+
+    private static JFrame frame;
+    private static RemoteControl remote;
+
+    private static TrackLibrary library;
+    // Every gain edit, the open folders and the play order go to the journal as they happen; what it held
+    // at startup is in recovered, whose gains are applied to their tracks as folders are opened
+    private static SessionJournal journal;
+    private static final SessionJournal.State recovered = new SessionJournal.State();
+    private static long journaledPosition = 0;
+    private static boolean journaledPlaying = false;
+    private static LoudnessAnalyzer analyzer;
+    private static final ConcurrentLinkedQueue<LoudnessAnalyzer.Result> analysisResults = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<List<File>> scanResults = new ConcurrentLinkedQueue<>();
+    private static Runnable folderLoaded;
+    private static Timer libraryTimer;
+    private static JTextField searchField;
+    private static JSlider positionSlider;
+    private static JLabel positionLabel;
+    private static boolean updatingPosition = false;
+    private static final Random random = new Random();
+    private static final double SEEK_SECONDS = 5.0;
+    private static final double JOURNAL_POSITION_SECONDS = 10.0;
+    private static ShuffleEngine shuffler = new ShuffleEngine(tracks, random);
+    private static ShuffleEngine.Mode shuffleMode = ShuffleEngine.Mode.RANDOM;
 
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("normalize")) {
+            BatchNormalizer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        journal = SessionJournal.open(SessionJournal.DEFAULT_FILE, recovered);
+        // The last session is rebuilt before Swing is loaded and its track starts while the window is being
+        // built; the folder scans wait for the window. It is queued before playback starts, so the engine's
+        // first callback finds it built
+        applySavedOutput();
+        long resumeFrame = restoreSession();
+        SwingUtilities.invokeLater(() -> {
+            createAndShowGUI();
+            if (library != null) {
+                resumeLibrary();
+            }
+        });
+        if (resumeFrame >= 0) {
+            engine.play(currentPlayingIndex, resumeFrame);
+        }
+        // JMX and JFR take about half a second to set up, so the stats are registered off the startup path
+        Thread statsThread = new Thread(engine.stats::register, "register-stats");
+        statsThread.setDaemon(true);
+        statsThread.start();
+    }
 
-    private static int currentPlayingIndex = 0;
-    private static double[] gains;
+    // Rebuilds the last session from the journal: the tracks played so far in the pass come back in their
+    // order with their gains, and the current one is the last row. The folders are attached but not scanned
+    // yet, and the pass goes on with the rest of their tracks once they are found. Returns the frame to
+    // resume the current track at, or -1 if there is nothing to play.
+    private static long restoreSession() {
+        List<File> folders = new ArrayList<>();
+        for (String root : recovered.roots) {
+            File folder = new File(root);
+            if (folder.isDirectory()) {
+                folders.add(folder);
+            }
+        }
+        if (folders.isEmpty()) {
+            return -1;
+        }
+        tracks = new TrackTableModel();
+        shuffler = new ShuffleEngine(tracks, random);
+        library = new TrackLibrary(scanResults::add, (root, changes) -> SwingUtilities.invokeLater(() -> applyLibraryChanges(root, changes)));
+        analyzer = new LoudnessAnalyzer(library::indexOf, analysisResults::add);
+        for (File folder : folders) {
+            library.attach(folder);
+        }
+        setShuffleMode(shuffleMode);
+
+        // A track played again after going back keeps only its latest place
+        Set<File> played = new LinkedHashSet<>();
+        for (String path : recovered.played) {
+            File file = new File(path);
+            played.remove(file);
+            if (file.isFile() && library.rootOf(file) != null) {
+                played.add(file);
+            }
+        }
+        if (played.isEmpty()) {
+            return -1;
+        }
+        appendTracks(new ArrayList<>(played));
+        currentPlayingIndex = tracks.getRowCount() - 1;
+        shuffler.playFrom(currentPlayingIndex);
+        String current = tracks.getFile(currentPlayingIndex).getAbsolutePath();
+        return current.equals(recovered.current()) ? recovered.position : 0;
+    }
+
+    // Starts scanning the restored folders and analyzing the restored tracks, once the window is up.
+    private static void resumeLibrary() {
+        List<File> restored = new ArrayList<>();
+        for (int row = 0; row < tracks.getRowCount(); row++) {
+            restored.add(tracks.getFile(row));
+        }
+        analyzer.submit(restored);
+        for (TrackLibrary.Root root : library.roots()) {
+            library.start(root);
+        }
+        startLibraryTimer();
+    }
 
-    private static boolean pausePressed = false;
+    private static void openFolder(File folder, Runnable onLoaded) {
+        openFolders(List.of(folder), onLoaded);
+    }
 
-    private static boolean manualNavigation = false;
+    // Replaces the library with the folders and starts streaming them into the table. Gains remembered in
+    // each folder's index are applied as rows arrive, playback starts with the first batch and onLoaded runs
+    // once every tree has been listed.
+    private static void openFolders(List<File> folders, Runnable onLoaded) {
+        if (library != null) {
+            drainScanResults();
+            saveIndex();
+            library.unmountAll();
+        }
+        if (analyzer != null) {
+            analyzer.cancel();
+        }
+        engine.stop();
+        scanResults.clear();
+        analysisResults.clear();
+
+        currentPlayingIndex = 0;
+        highlightedRow = -1;
+        tracks = new TrackTableModel();
+        shuffler = new ShuffleEngine(tracks, random);
+        setShuffleMode(shuffleMode);
+        wavTable.setModel(tracks);
+        applySearch();
+        installRenderers(wavTable);
+
+        folderLoaded = onLoaded;
+        // Changes made while a scan is still running are filtered against the rows it already added
+        library = new TrackLibrary(scanResults::add, (root, changes) -> SwingUtilities.invokeLater(() -> applyLibraryChanges(root, changes)));
+        analyzer = new LoudnessAnalyzer(library::indexOf, analysisResults::add);
+        for (File folder : folders) {
+            library.mount(folder);
+        }
+        journalRoots();
+        journal.newPass();
+        startLibraryTimer();
+    }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> createAndShowGUI());
+    // Mounts another folder next to the open ones; its tracks join the shuffle pool as they are found.
+    private static void addFolder(File folder) {
+        if (library == null) {
+            openFolder(folder, null);
+        } else if (library.mount(folder) != null) {
+            journalRoots();
+            startLibraryTimer();
+        }
     }
 
-    private static List<File> loadWavFiles(String folderPath) {
-        List<File> files = new ArrayList<>();
-        try {
-            Files.walk(Paths.get(folderPath))
-                    .filter(Files::isRegularFile)
-                    .filter(path -> path.toString().endsWith(".wav"))
-                    .forEach(path -> files.add(path.toFile()));
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Saves the folder's gains to its index and takes its tracks out of the table. Tracks that also sit
+    // under another open folder stay.
+    private static void removeFolder(TrackLibrary.Root root) {
+        if (!library.isMounted(root)) {
+            return;
+        }
+        drainScanResults();
+        saveIndex();
+        library.unmount(root);
+        journalRoots();
+        List<Integer> removedRows = new ArrayList<>();
+        for (int row = 0; row < tracks.getRowCount(); row++) {
+            if (library.rootOf(tracks.getFile(row)) == null) {
+                removedRows.add(row);
+            }
         }
-        return files;
+        removeRows(removedRows.stream().mapToInt(Integer::intValue).toArray());
     }
 
-    private static boolean mouseClicked = false;
+    private static void journalRoots() {
+        List<String> roots = new ArrayList<>();
+        for (TrackLibrary.Root root : library.roots()) {
+            roots.add(root.folder().getAbsolutePath());
+        }
+        journal.roots(roots);
+    }
 
-    private static CustomTableModel createTableModel() {
-        String[] columnNames = {"Wav File", "Gain"};
-        Object[][] data;
+    private static void startLibraryTimer() {
+        // Results are applied in batches so fast pools don't flood the EDT with one event per file
+        if (libraryTimer == null) {
+            libraryTimer = new Timer(100, e -> {
+                drainScanResults();
+                drainAnalysisResults();
+                updateProgress();
+            });
+        }
+        libraryTimer.start();
+    }
 
-        if (wavFiles != null) {
-            data = new Object[wavFiles.size()][2];
-            for (int i = 0; i < wavFiles.size(); i++) {
-                data[i][0] = wavFiles.get(i).getName();
-                data[i][1] = 0;
-            }
+    // Appends newly found files to the shuffle pool. The rows up to the prefetched ones keep their place.
+    private static void drainScanResults() {
+        List<File> batch = new ArrayList<>();
+        List<File> found;
+        while ((found = scanResults.poll()) != null) {
+            batch.addAll(found);
+        }
+        addTracks(batch);
+    }
+
+    private static void addTracks(List<File> batch) {
+        // The watcher and a running scan can both report a new file, and a removed folder's scan may still
+        // have had a batch queued
+        batch.removeIf(file -> tracks.rowOf(file) >= 0 || library.rootOf(file) == null);
+        if (batch.isEmpty()) {
+            return;
+        }
+        appendTracks(batch);
+
+        analyzer.submit(batch);
+        if (!engine.hasTrack()) {
+            playWav(0);
         } else {
-            data = new Object[0][2];
+            // Never draws over the playing row, even before its trackStarted has reached the EDT
+            shuffler.playFrom(currentPlayingIndex);
+        }
+    }
+
+    // Appends the files with the gains their index remembers, or the journal when the index missed an edit.
+    private static void appendTracks(List<File> batch) {
+        double[] batchGains = new double[batch.size()];
+        boolean[] batchManual = new boolean[batch.size()];
+        float[] batchTruePeaks = new float[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            LibraryIndex.Entry entry = library.entry(batch.get(i));
+            if (entry != null) {
+                batchGains[i] = entry.gain;
+                batchManual[i] = entry.manual;
+                batchTruePeaks[i] = entry.truePeak;
+            } else {
+                batchTruePeaks[i] = Float.NaN;
+            }
+            // An edit the index missed because the player didn't get to save it. Taken once, as from here
+            // the row's gain is the one saved
+            Float journaled = recovered.gains.remove(batch.get(i).getAbsolutePath());
+            if (journaled != null) {
+                batchGains[i] = journaled;
+                batchManual[i] = true;
+            }
+        }
+        tracks.append(batch, batchGains, batchManual, batchTruePeaks);
+    }
+
+    // Applies what the watcher saw to the open library without a rescan: renamed tracks keep their row and
+    // gain, removed ones leave the table and shuffle order, new files are appended and queued for analysis
+    // and rewritten ones are analyzed again. The current track keeps playing unless its file went away.
+    private static void applyLibraryChanges(TrackLibrary.Root root, LibraryWatcher.Changes changes) {
+        if (library == null || !library.isMounted(root)) {
+            // Queued before the folder was removed or another one opened
+            return;
+        }
+        drainScanResults();
+
+        List<File> changed = new ArrayList<>(changes.changed);
+        for (Map.Entry<File, File> rename : changes.renamed.entrySet()) {
+            int row = tracks.rowOf(rename.getKey());
+            if (row >= 0 && tracks.rowOf(rename.getValue()) < 0) {
+                root.index.rename(rename.getKey(), rename.getValue());
+                tracks.rename(row, rename.getValue());
+            } else {
+                changed.add(rename.getValue());
+            }
+        }
+
+        List<File> removedDirs = new ArrayList<>();
+        List<Integer> removedRows = new ArrayList<>();
+        for (File file : changes.removed) {
+            int row = tracks.rowOf(file);
+            if (row >= 0) {
+                removedRows.add(row);
+            } else {
+                removedDirs.add(file);
+            }
+        }
+        removedDirs.addAll(changes.rescanned);
+        if (!removedDirs.isEmpty()) {
+            for (int row = 0; row < tracks.getRowCount(); row++) {
+                Path path = tracks.getFile(row).toPath();
+                for (File dir : removedDirs) {
+                    boolean rescanned = changes.rescanned.contains(dir);
+                    if (rescanned ? path.getParent().equals(dir.toPath()) && !Files.exists(path) : path.startsWith(dir.toPath())) {
+                        removedRows.add(row);
+                        break;
+                    }
+                }
+            }
+        }
+        removeRows(removedRows.stream().mapToInt(Integer::intValue).distinct().sorted().toArray());
+
+        List<File> added = new ArrayList<>();
+        List<File> rewritten = new ArrayList<>();
+        for (File file : changed) {
+            (tracks.rowOf(file) >= 0 ? rewritten : added).add(file);
+        }
+        addTracks(added);
+        for (File file : rewritten) {
+            thumbnails.invalidate(file);
         }
+        analyzer.submit(rewritten);
+        if (!added.isEmpty() || !rewritten.isEmpty()) {
+            libraryTimer.start();
+        }
+    }
+
+    private static void removeRows(int[] rows) {
+        if (rows.length == 0) {
+            return;
+        }
+        tracks.removeRows(rows);
+        shuffler.rowsRemoved(rows);
+        engine.rowsRemoved(rows);
+        currentPlayingIndex = shiftedRow(currentPlayingIndex, rows);
+        highlightedRow = shiftedRow(highlightedRow, rows);
+    }
+
+    // Where row ends up after rows were removed. A removed row maps to the row that moved into its place.
+    private static int shiftedRow(int row, int[] rows) {
+        int before = 0;
+        while (before < rows.length && rows[before] < row) {
+            before++;
+        }
+        return row - before;
+    }
 
-        return new CustomTableModel(data, columnNames);
+    // Each folder's gains go to its own index, so a folder opened alone later keeps them. Callers drain the
+    // scan results first, so files already listed are saved too; directories are only recorded once their
+    // root's scan is done.
+    private static void saveIndex() {
+        if (library == null) {
+            return;
+        }
+        Map<TrackLibrary.Root, List<File>> filesByRoot = new LinkedHashMap<>();
+        for (TrackLibrary.Root root : library.roots()) {
+            filesByRoot.put(root, new ArrayList<>());
+        }
+        for (int i = 0; i < tracks.getRowCount(); i++) {
+            File file = tracks.getFile(i);
+            TrackLibrary.Root root = library.rootOf(file);
+            if (root == null) {
+                continue;
+            }
+            filesByRoot.get(root).add(file);
+            LibraryIndex.Entry entry = root.index.get(file);
+            if (entry != null) {
+                entry.gain = (float) tracks.getGain(i);
+                entry.manual = tracks.isManual(i);
+            }
+        }
+        for (Map.Entry<TrackLibrary.Root, List<File>> files : filesByRoot.entrySet()) {
+            try {
+                files.getKey().index.save(files.getValue(), library.isScanned(files.getKey()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    private static File currentFolder;
+    // Exports are named after the first folder.
+    private static File defaultExportFile(String extension) {
+        if (library == null || library.roots().isEmpty()) {
+            return null;
+        }
+        return new File(library.roots().get(0).folder().getName() + extension);
+    }
 
     private static void saveToFile() {
         JFileChooser fileChooser = new JFileChooser();
@@ -78,9 +417,9 @@ public class WavPlayer {
         fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
 
         // Set default file name to the opened folder's name with a .txt extension
-        if (currentFolder != null) {
-            String defaultFileName = currentFolder.getName() + ".txt";
-            fileChooser.setSelectedFile(new File(defaultFileName));
+        File defaultFile = defaultExportFile(".txt");
+        if (defaultFile != null) {
+            fileChooser.setSelectedFile(defaultFile);
         }
 
         int result = fileChooser.showSaveDialog(null);
@@ -89,9 +428,9 @@ public class WavPlayer {
 
             try (PrintWriter writer = new PrintWriter(new FileWriter(fileToSave))) {
                 List<String> lines = new ArrayList<>();
-                for (int i = 0; i < wavFiles.size(); i++) {
-                    String fileName = wavFiles.get(i).getName();
-                    double gain = gains[i];
+                for (int i = 0; i < tracks.getRowCount(); i++) {
+                    String fileName = tracks.getFile(i).getName();
+                    double gain = tracks.getGain(i);
                     lines.add(fileName + " - " + new DecimalFormat("#.#").format(gain));
                 }
 
@@ -114,9 +453,24 @@ public class WavPlayer {
     }
 
     private static void createAndShowGUI() {
-        JFrame frame = new JFrame("Wav Player");
+        // Repaints a row once its waveform has been drawn
+        thumbnails = new WaveformThumbnails(file -> repaintRow(tracks.rowOf(file)));
+        frame = new JFrame("Wav Player");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(600, 400);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                if (library != null) {
+                    drainScanResults();
+                    saveIndex();
+                }
+                if (engine.hasTrack() && currentPlayingIndex < tracks.getRowCount()) {
+                    journal.track(tracks.getFile(currentPlayingIndex).getAbsolutePath(), engine.getPlaybackPosition());
+                }
+                journal.close();
+            }
+        });
 
         JMenuBar menuBar = new JMenuBar();
         JMenu fileMenu = new JMenu("File");
@@ -127,24 +481,46 @@ public class WavPlayer {
             folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
             int returnValue = folderChooser.showOpenDialog(null);
             if (returnValue == JFileChooser.APPROVE_OPTION) {
-                currentFolder = folderChooser.getSelectedFile();
+                openFolder(folderChooser.getSelectedFile(), null);
+            }
+        });
+
+        fileMenu.add(openFolderItem);
 
-                wavFiles = loadWavFiles(currentFolder.getAbsolutePath());
-                gains = new double[wavFiles.size()];
-                wavTable.setModel(createTableModel());
+        JMenuItem addFolderItem = new JMenuItem("Add Folder");
+        addFolderItem.addActionListener(e -> {
+            JFileChooser folderChooser = new JFileChooser();
+            folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            if (folderChooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
+                addFolder(folderChooser.getSelectedFile());
+            }
+        });
+        fileMenu.add(addFolderItem);
 
-                // Set custom cell renderer
-                CustomTableCellRenderer customRenderer = new CustomTableCellRenderer();
-                for (int i = 0; i < wavTable.getColumnCount(); i++) {
-                    wavTable.getColumnModel().getColumn(i).setCellRenderer(customRenderer);
+        // Lists the open folders each time it is shown
+        JMenu removeFolderMenu = new JMenu("Remove Folder");
+        removeFolderMenu.addMenuListener(new MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                removeFolderMenu.removeAll();
+                if (library != null) {
+                    for (TrackLibrary.Root root : library.roots()) {
+                        JMenuItem rootItem = new JMenuItem(root.folder().getPath());
+                        rootItem.addActionListener(event -> removeFolder(root));
+                        removeFolderMenu.add(rootItem);
+                    }
                 }
+            }
 
-                shuffleTable();
-                wavTable.repaint();
+            @Override
+            public void menuDeselected(MenuEvent e) {
             }
-        });
 
-        fileMenu.add(openFolderItem);
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
+        fileMenu.add(removeFolderMenu);
 
         JMenuItem saveMenuItem = new JMenuItem("Save");
         saveMenuItem.addActionListener(e -> saveToFile());
@@ -158,7 +534,30 @@ public class WavPlayer {
         exportMenuItem.addActionListener(e -> exportToJson());
         fileMenu.add(exportMenuItem);
 
+        JMenuItem clipReportItem = new JMenuItem("Export Clip Report");
+        clipReportItem.addActionListener(e -> exportClipReport());
+        fileMenu.add(clipReportItem);
+
         menuBar.add(fileMenu);
+
+        JMenu shuffleMenu = new JMenu("Shuffle");
+        ButtonGroup shuffleGroup = new ButtonGroup();
+        for (ShuffleEngine.Mode mode : ShuffleEngine.Mode.values()) {
+            JRadioButtonMenuItem modeItem = new JRadioButtonMenuItem(mode.label, mode == shuffleMode);
+            modeItem.addActionListener(e -> setShuffleMode(mode));
+            shuffleGroup.add(modeItem);
+            shuffleMenu.add(modeItem);
+        }
+        menuBar.add(shuffleMenu);
+
+        menuBar.add(createOutputMenu());
+
+        JMenu viewMenu = new JMenu("View");
+        JMenuItem statsItem = new JMenuItem("Playback Stats");
+        statsItem.addActionListener(e -> StatsPanel.showDialog(frame, engine.stats));
+        viewMenu.add(statsItem);
+        viewMenu.add(createRemoteItem());
+        menuBar.add(viewMenu);
         frame.setJMenuBar(menuBar);
 
         wavTable = createWavTable();
@@ -171,30 +570,7 @@ public class WavPlayer {
 
                 int row = wavTable.getSelectedRow();
                 if (row >= 0) {
-                    currentPlayingIndex = row;
-                    mouseClicked = true;
-                    try {
-                        if (currentLine != null ){//&& currentLine.isRunning()) {
-                            currentLine.stop();
-                            currentLine.close();
-                        }
-//                       if(currentLine != null) {
-//                            currentLine.stop();
-//                            currentLine.close();
-//                        }
-
-//                        for (Thread thread : threads) {
-//                            thread.interrupt();
-//                        }
-//
-//                        if(playbackThread != null) {
-//                            playbackThread.interrupt();
-//                        }
-
-                        playWav(currentPlayingIndex);
-                    } catch (UnsupportedAudioFileException | IOException | LineUnavailableException ex) {
-                        ex.printStackTrace();
-                    }
+                    playWav(wavTable.convertRowIndexToModel(row));
                 }
             }
         });
@@ -202,6 +578,49 @@ public class WavPlayer {
         JScrollPane scrollPane = new JScrollPane(wavTable);
         frame.add(scrollPane);
 
+        // Filters the table by file or folder name; playback and shuffle still cover the whole library
+        searchField = new JTextField();
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                applySearch();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                applySearch();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                applySearch();
+            }
+        });
+        JPanel searchPanel = new JPanel(new BorderLayout(8, 0));
+        searchPanel.add(new JLabel("Search"), BorderLayout.WEST);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+        frame.add(searchPanel, BorderLayout.NORTH);
+
+        // The slider counts tenths of a second; keys seek to exact frames
+        positionSlider = new JSlider(0, 0, 0);
+        positionSlider.setFocusable(false);
+        positionSlider.setEnabled(false);
+        positionSlider.addChangeListener(e -> {
+            if (!updatingPosition && !positionSlider.getValueIsAdjusting() && positionSlider.isEnabled()) {
+                engine.seek((long) (positionSlider.getValue() * engine.getFrameRate() / 10));
+            }
+        });
+        positionLabel = new JLabel(formatTime(0) + " / " + formatTime(0));
+        JPanel positionPanel = new JPanel(new BorderLayout(8, 0));
+        positionPanel.add(positionSlider, BorderLayout.CENTER);
+        positionPanel.add(positionLabel, BorderLayout.EAST);
+        frame.add(positionPanel, BorderLayout.SOUTH);
+        new Timer(200, e -> {
+            updatePosition();
+            publishStatus();
+            journalPosition();
+        }).start();
+
         KeyboardFocusManager.getCurrentKeyboardFocusManager()
                 .addKeyEventDispatcher(new KeyEventDispatcher() {
                     @Override
@@ -212,46 +631,43 @@ public class WavPlayer {
                             try {
                                 switch (e.getKeyCode()) {
 
-                                    case KeyEvent.VK_Q:
-                                        manualNavigation = false;
-//                                        if(currentLine != null) {
-//                                            currentLine.stop();
-//                                            currentLine.close();
-//                                        }
-//                                        if(playbackThread != null) {
-//                                            playbackThread.interrupt();
-//                                        }
-                                        break;
-
                                     case KeyEvent.VK_SPACE:
-                                        if (currentLine == null) {
-                                            playWav(currentPlayingIndex);
-                                        } else if (currentLine.isRunning()) {
-                                            currentLine.stop();
-                                            pausePressed = true;
-                                        } else {
-                                            currentLine.start();
-                                            pausePressed = false;
+                                        if (tracks.getRowCount() > 0) {
+                                            engine.togglePause();
                                         }
                                         break;
 
                                     case KeyEvent.VK_DOWN:
-                                        manualNavigation = true;
-                                        if (currentPlayingIndex < wavFiles.size() - 1) {
-                                            nextWav();
-                                        }
+                                        nextWav();
                                         break;
                                     case KeyEvent.VK_UP:
-                                        manualNavigation = true;
-                                        if (currentPlayingIndex > 0) {
-                                            previousWav();
-                                        }
+                                        previousWav();
                                         break;
                                     case KeyEvent.VK_LEFT:
-                                        changeGain(-0.1);
+                                        if (e.isShiftDown()) {
+                                            engine.skip(-SEEK_SECONDS);
+                                        } else {
+                                            changeGain(-0.1);
+                                        }
                                         break;
                                     case KeyEvent.VK_RIGHT:
-                                        changeGain(0.1);
+                                        if (e.isShiftDown()) {
+                                            engine.skip(SEEK_SECONDS);
+                                        } else {
+                                            changeGain(0.1);
+                                        }
+                                        break;
+                                    case KeyEvent.VK_HOME:
+                                        engine.seek(0);
+                                        break;
+                                    default:
+                                        // 1-9 jump to 10%-90% of the track, e.g. straight to the chorus
+                                        if (e.getKeyCode() >= KeyEvent.VK_1 && e.getKeyCode() <= KeyEvent.VK_9) {
+                                            long length = engine.getFrameLength();
+                                            if (length > 0) {
+                                                engine.seek(length * (e.getKeyCode() - KeyEvent.VK_0) / 10);
+                                            }
+                                        }
                                         break;
                                 }
                             } catch (Exception ex) {
@@ -267,49 +683,6 @@ public class WavPlayer {
         frame.setVisible(true);
     }
 
-    private static String unescapeJsonString(String input) {
-        StringBuilder output = new StringBuilder();
-        boolean escaped = false;
-        for (int i = 0; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (escaped) {
-                if (c == '"' || c == '\\' || c == '/') {
-                    output.append(c);
-                } else if (c == 'b') {
-                    output.append('\b');
-                } else if (c == 'f') {
-                    output.append('\f');
-                } else if (c == 'n') {
-                    output.append('\n');
-                } else if (c == 'r') {
-                    output.append('\r');
-                } else if (c == 't') {
-                    output.append('\t');
-                } else {
-                    output.append('\\').append(c);
-                }
-                escaped = false;
-            } else if (c == '\\') {
-                escaped = true;
-            } else {
-                output.append(c);
-            }
-        }
-        return output.toString();
-    }
-
-    private static String escapeJsonString(String input) {
-        StringBuilder output = new StringBuilder();
-        for (int i = 0; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (c == '"' || c == '\\' || c == '/') {
-                output.append('\\');
-            }
-            output.append(c);
-        }
-        return output.toString();
-    }
-
     public static void importFromJson() {
         Component parent = null;
         JFileChooser fileChooser = new JFileChooser();
@@ -321,96 +694,114 @@ public class WavPlayer {
             File selectedFile = fileChooser.getSelectedFile();
 
             try {
-                String jsonString = new String(Files.readAllBytes(selectedFile.toPath()));
-                Pattern folderPathPattern = Pattern.compile("\"folderPath\"\\s*:\\s*\"(.*?)\"");
-                Matcher folderPathMatcher = folderPathPattern.matcher(jsonString);
-                if (folderPathMatcher.find()) {
-                    String folderPath = unescapeJsonString(folderPathMatcher.group(1));
-
-                    Path folderPathObj = Paths.get(folderPath);
-                    wavFiles = loadWavFiles(folderPathObj.toString());
-                    gains = new double[wavFiles.size()];
-                    wavTable.setModel(createTableModel());
-
-                    // Set custom cell renderer
-                    CustomTableCellRenderer customRenderer = new CustomTableCellRenderer();
-                    for (int i = 0; i < wavTable.getColumnCount(); i++) {
-                        wavTable.getColumnModel().getColumn(i).setCellRenderer(customRenderer);
-                    }
-
-                    shuffleTable();
-                }
-
-                Pattern filesPattern = Pattern.compile("\"files\"\\s*:\\s*\\[(.*?)\\]", Pattern.DOTALL);
-                Matcher filesMatcher = filesPattern.matcher(jsonString);
-                if (filesMatcher.find()) {
-                    String filesArray = filesMatcher.group(1);
-                    Pattern filePattern = Pattern.compile("\\{\\s*\"fileName\"\\s*:\\s*\"([^\"]+)\"\\s*,\\s*\"Gain\"\\s*:\\s*(-?\\d+(?:\\.\\d+)?)\\s*\\}");
-
-                    Matcher fileMatcher = filePattern.matcher(filesArray);
-
-                    DefaultTableModel tableModel = (DefaultTableModel) wavTable.getModel();
-                    while (fileMatcher.find()) {
-                        String name = unescapeJsonString(fileMatcher.group(1));
-                        double gain = Double.parseDouble(fileMatcher.group(2));
-                        for (int i = 0; i < tableModel.getRowCount(); i++) {
-                            if (name.equals(tableModel.getValueAt(i, 0))) {
-                                tableModel.setValueAt(gain, i, 1);
-                                break;
-                            }
-                        }
+                List<String> folderPaths = SessionJsonReader.readFolderPaths(selectedFile);
+                Runnable applyGains = () -> applyImportedGains(selectedFile, folderPaths);
+                if (!folderPaths.isEmpty()) {
+                    List<File> folders = new ArrayList<>();
+                    for (String folderPath : folderPaths) {
+                        folders.add(Paths.get(folderPath).toFile());
                     }
+                    // Gains can only be matched once the scans have listed every file
+                    openFolders(folders, applyGains);
+                } else {
+                    applyGains.run();
                 }
 
-                wavTable.repaint();
-
             } catch (IOException e) {
                 e.printStackTrace();
+                JOptionPane.showMessageDialog(null, "Could not read " + selectedFile.getName() + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
         }
     }
 
+    // Entries are matched by relative path when the export has one, and by file name for older exports.
+    // Paths are relative to the entry's folder in the export, or to the open folder at the same position
+    // when the export names none. Both lookups are hashed, so an import is linear in the number of entries.
+    private static void applyImportedGains(File jsonFile, List<String> folderPaths) {
+        List<Path> folders = new ArrayList<>();
+        for (String folderPath : folderPaths) {
+            folders.add(Paths.get(folderPath));
+        }
+        if (folders.isEmpty() && library != null) {
+            for (TrackLibrary.Root root : library.roots()) {
+                folders.add(root.index.root);
+            }
+        }
+        Map<String, Integer> rowsByName = new HashMap<>();
+        for (int i = tracks.getRowCount() - 1; i >= 0; i--) {
+            rowsByName.put(tracks.getFile(i).getName(), i);
+        }
+        // Matched first and set together, so the table gets one update event rather than one per entry
+        int[][] rows = {new int[64]};
+        double[][] gains = {new double[64]};
+        int[] count = {0};
+        try {
+            SessionJsonReader.readEntries(jsonFile, (name, folder, path, gain) -> {
+                int row = -1;
+                if (path != null && folder >= 0 && folder < folders.size()) {
+                    try {
+                        row = tracks.rowOf(folders.get(folder).resolve(path).toFile());
+                    } catch (InvalidPathException e) {
+                        // A path this system can't represent; the name may still match
+                    }
+                }
+                if (row < 0) {
+                    row = rowsByName.getOrDefault(name, -1);
+                }
+                if (row >= 0) {
+                    if (count[0] == rows[0].length) {
+                        rows[0] = Arrays.copyOf(rows[0], count[0] * 2);
+                        gains[0] = Arrays.copyOf(gains[0], count[0] * 2);
+                    }
+                    rows[0][count[0]] = row;
+                    gains[0][count[0]] = gain;
+                    count[0]++;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(null, "Could not read " + jsonFile.getName() + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+        // Entries read before an error still apply, as they did when each was set on its own
+        tracks.setManualGains(rows[0], gains[0], count[0]);
+        for (int i = 0; i < count[0]; i++) {
+            journal.gain(tracks.getFile(rows[0][i]).getAbsolutePath(), gains[0][i], true);
+        }
+
+        applyGain();
+    }
+
     private static void exportToJson() {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Export to JSON");
         fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
 
         // Set default file name to the opened folder's name with a .json extension
-        if (currentFolder != null) {
-            String defaultFileName = currentFolder.getName() + ".json";
-            fileChooser.setSelectedFile(new File(defaultFileName));
+        File defaultFile = defaultExportFile(".json");
+        if (defaultFile != null) {
+            fileChooser.setSelectedFile(defaultFile);
         }
 
         int result = fileChooser.showSaveDialog(null);
         if (result == JFileChooser.APPROVE_OPTION) {
             File fileToSave = fileChooser.getSelectedFile();
 
-            try (FileWriter writer = new FileWriter(fileToSave)) {
-                StringBuilder jsonString = new StringBuilder();
-                jsonString.append("{\n");
-                jsonString.append("  \"folderPath\": \"").append(escapeJsonString(currentFolder.getAbsolutePath())).append("\",\n");
-                jsonString.append("  \"files\": [\n");
-
-                for (int i = 0; i < wavFiles.size(); i++) {
-                    String fileName = escapeJsonString(wavFiles.get(i).getName());
-                    double gain = gains[i];
-                    jsonString.append("    {\n");
-                    jsonString.append("      \"fileName\": \"").append(fileName).append("\",\n");
-                    jsonString.append("      \"Gain\": ").append(new DecimalFormat("#.##").format(gain)).append("\n");
-                    jsonString.append("    }");
-
-                    if (i < wavFiles.size() - 1) {
-                        jsonString.append(",\n");
+            List<TrackLibrary.Root> roots = library == null ? List.of() : new ArrayList<>(library.roots());
+            List<String> folderPaths = new ArrayList<>();
+            for (TrackLibrary.Root root : roots) {
+                folderPaths.add(root.folder().getAbsolutePath());
+            }
+            try (SessionJsonWriter writer = new SessionJsonWriter(fileToSave, folderPaths)) {
+                for (int i = 0; i < tracks.getRowCount(); i++) {
+                    File file = tracks.getFile(i);
+                    TrackLibrary.Root root = library.rootOf(file);
+                    if (root == null) {
+                        writer.add(file.getName(), null, tracks.getGain(i));
                     } else {
-                        jsonString.append("\n");
+                        writer.add(file.getName(), roots.indexOf(root), root.index.key(file), tracks.getGain(i));
                     }
                 }
 
-                jsonString.append("  ]\n");
-                jsonString.append("}");
-
-                writer.write(jsonString.toString());
-
             } catch (IOException e) {
                 e.printStackTrace();
 
@@ -421,173 +812,459 @@ public class WavPlayer {
     }
 
 
-    private static JTable createWavTable() {
+    private static void exportClipReport() {
+        ClipReport report = new ClipReport(tracks);
+        String pending = report.unmeasured() > 0 ? "\n" + report.unmeasured() + " tracks are not analyzed yet and are not included." : "";
+        if (report.size() == 0) {
+            JOptionPane.showMessageDialog(frame, "No track clips at its current gain." + pending, "Clip Report", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("Export Clip Report");
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+        File defaultFile = defaultExportFile("-clipping.csv");
+        if (defaultFile != null) {
+            fileChooser.setSelectedFile(defaultFile);
+        }
+        if (fileChooser.showSaveDialog(frame) == JFileChooser.APPROVE_OPTION) {
+            try {
+                report.write(fileChooser.getSelectedFile());
+                JOptionPane.showMessageDialog(frame, report.size() + " tracks clip." + pending, "Clip Report", JOptionPane.INFORMATION_MESSAGE);
+            } catch (IOException e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(frame, "An error occurred while exporting the clip report. Please try again.", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
 
-        CustomTableModel model = createTableModel();
+    private static JTable createWavTable() {
 
-//        CustomTableModel model = new CustomTableModel(data, columnNames);
-        JTable table = new JTable(model);
+        JTable table = new JTable(tracks);
         table.setCellSelectionEnabled(false);
         table.setFocusable(false);
+        installRenderers(table);
+        return table;
+    }
+
+    // Setting a model rebuilds the columns, so this runs again for every folder opened.
+    private static void installRenderers(JTable table) {
         CustomTableCellRenderer customRenderer = new CustomTableCellRenderer();
         for (int i = 0; i < table.getColumnCount(); i++) {
             table.getColumnModel().getColumn(i).setCellRenderer(customRenderer);
         }
-        return table;
+        TableColumn waveformColumn = table.getColumnModel().getColumn(TrackTableModel.WAVEFORM_COLUMN);
+        waveformColumn.setCellRenderer(new WaveformThumbnails.CellRenderer(thumbnails, () -> currentPlayingIndex));
+        waveformColumn.setPreferredWidth(240);
     }
 
-    static Thread playbackThread;
-
-//    static Vector<Thread> threads = new Vector<>();
-    static boolean disableControls = false;
+    private static final PlaybackEngine engine = new PlaybackEngine(new PlaybackEngine.Playlist() {
+        @Override
+        public int size() {
+            return tracks.getRowCount();
+        }
 
-//    static boolean stopPlaying = false;
+        @Override
+        public File file(int index) {
+            return tracks.getFile(index);
+        }
 
-    static Thread toStopThread = null;
+        @Override
+        public double gain(int index) {
+            return tracks.getGain(index);
+        }
 
-    private static void playWav(int index) throws UnsupportedAudioFileException, IOException, LineUnavailableException {
-//        stopPlaying = true;
-        toStopThread = playbackThread;
-        if (currentLine != null) {
-            currentLine.stop();
-            currentLine.close();
+        @Override
+        public void trackStarted(int index) {
+            currentPlayingIndex = index;
+            SwingUtilities.invokeLater(() -> {
+                if (index < tracks.getRowCount()) {
+                    journal.track(tracks.getFile(index).getAbsolutePath(), 0);
+                    journaledPosition = 0;
+                }
+                // Fixes the playing row in place, in case it started past the frontier
+                shuffler.playFrom(index);
+                int viewRow = viewRow(index);
+                if (viewRow >= 0) {
+                    wavTable.setRowSelectionInterval(viewRow, viewRow);
+                }
+                highlightRow(index);
+            });
         }
 
-        AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(wavFiles.get(index));
-        AudioFormat format = audioInputStream.getFormat();
-        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
-        currentLine = (SourceDataLine) AudioSystem.getLine(info);
-        currentLine.open(format);
+        @Override
+        public void playlistEnded() {
+            SwingUtilities.invokeLater(() -> {
+                currentPlayingIndex = 0;
+                shuffler.newPass();
+                journal.newPass();
+                playWav(currentPlayingIndex);
+            });
+        }
+    });
 
+    private static void playWav(int index) {
         currentPlayingIndex = index;
-        currentLine.start();
-        try {
-            applyGain();
+        shuffler.playFrom(index);
+        engine.play(index);
+        highlightRow(index);
+    }
+
+    // Repaints only the rows whose highlight changed instead of the whole table.
+    private static void highlightRow(int row) {
+        repaintRow(highlightedRow);
+        highlightedRow = row;
+        repaintRow(row);
+    }
+
+    private static void repaintRow(int row) {
+        int viewRow = viewRow(row);
+        if (viewRow >= 0) {
+            Rectangle first = wavTable.getCellRect(viewRow, 0, true);
+            wavTable.repaint(first.union(wavTable.getCellRect(viewRow, wavTable.getColumnCount() - 1, true)));
         }
-        catch (Exception e){
-            System.out.println(e.getMessage());
+    }
+
+    // Where a track row is shown while the table is filtered, or -1 if the search hides it.
+    private static int viewRow(int row) {
+        return row >= 0 && row < tracks.getRowCount() ? wavTable.convertRowIndexToView(row) : -1;
+    }
+
+    // Rows are filtered through a sorter only while there is a query, so an unfiltered table costs nothing.
+    private static void applySearch() {
+        String query = searchField.getText().trim();
+        tracks.setQuery(query);
+        if (query.isEmpty()) {
+            wavTable.setRowSorter(null);
             return;
         }
-        wavTable.repaint();
+        TrackTableModel model = tracks;
+        TableRowSorter<TrackTableModel> sorter = new TableRowSorter<>(model);
+        for (int i = 0; i < model.getColumnCount(); i++) {
+            sorter.setSortable(i, false);
+        }
+        sorter.setRowFilter(new RowFilter<TrackTableModel, Integer>() {
+            @Override
+            public boolean include(Entry<? extends TrackTableModel, ? extends Integer> entry) {
+                return model.matches(entry.getIdentifier());
+            }
+        });
+        wavTable.setRowSorter(sorter);
+    }
 
-//        if(playbackThread != null) {
-////            playbackThread.interrupt();
-//            return;
-//        }
-//        playbackThread.stop();
+    // Loudness-weighted mode favours tracks whose level after gain is furthest from the target, and tracks
+    // not analyzed yet, so a balancing session hears the tracks that most likely need attention first.
+    private static void setShuffleMode(ShuffleEngine.Mode mode) {
+        shuffleMode = mode;
+        TrackTableModel model = tracks;
+        TrackLibrary openLibrary = library;
+        shuffler.setMode(mode, id -> {
+            LibraryIndex.Entry entry = openLibrary == null ? null : openLibrary.entry(model.getFileById(id));
+            if (entry == null || !entry.analyzed) {
+                return 5.0;
+            }
+            double deviation = Math.abs(entry.loudness + model.getGainById(id) - LoudnessAnalyzer.TARGET_LOUDNESS);
+            return 1.0 + Math.min(deviation, 24.0) / 6.0;
+        }, 5.0);
+    }
 
-        playbackThread = new Thread(() -> {
-            byte[] buffer = new byte[4096];
-//            byte[] buffer = new byte[8192];
+    private static void drainAnalysisResults() {
+        LoudnessAnalyzer.Result result;
+        while ((result = analysisResults.poll()) != null) {
+            int row = tracks.rowOf(result.file);
+            LibraryIndex index = library.indexOf(result.file);
+            if (row < 0 || index == null) {
+                continue;
+            }
+            LibraryIndex.Entry entry = result.toEntry();
+            index.put(result.file, entry);
+            tracks.setTruePeak(row, entry.truePeak);
+            if (result.replacesStale && tracks.isManual(row)) {
+                // The edit was for the file as it was
+                tracks.setManual(row, false);
+                journal.gain(result.file.getAbsolutePath(), result.gain, false);
+            }
+            if (tracks.isManual(row)) {
+                entry.gain = (float) tracks.getGain(row);
+                entry.manual = true;
+                continue;
+            }
+            tracks.setGain(row, result.gain, false);
+            if (row == currentPlayingIndex) {
+                applyGain();
+            }
+        }
+    }
 
-            int bytesRead = 0;
-            try {
-//                disableControls = true;
-//                synchronized (wavTable) {
-//                    stopPlaying = false;
-                    while ((bytesRead = audioInputStream.read(buffer, 0, buffer.length)) != -1) {
+    private static void updateProgress() {
+        int duplicates = library.getDuplicates();
+        String skipped = duplicates > 0 ? ", " + duplicates + " duplicates skipped" : "";
+        if (library.isScanning() || !scanResults.isEmpty()) {
+            frame.setTitle("Wav Player - scanning, " + library.getFound() + " files found" + skipped);
+            return;
+        }
+        if (folderLoaded != null) {
+            Runnable onLoaded = folderLoaded;
+            folderLoaded = null;
+            onLoaded.run();
+        }
+        if (analyzer.getDone() >= analyzer.getTotal()) {
+            ClipReport clipReport = new ClipReport(tracks);
+            frame.setTitle(clipReport.size() > 0 ? "Wav Player - " + clipReport.size() + " tracks clip, see File > Export Clip Report" : "Wav Player");
+            libraryTimer.stop();
+            saveIndex();
+        } else {
+            frame.setTitle("Wav Player - analyzing " + analyzer.getDone() + "/" + analyzer.getTotal());
+        }
+    }
 
-                        if(toStopThread != null && toStopThread == playbackThread){
-                            break;
-                        }
+    // Remote control is remembered across sessions, and so are its port and token, so a bookmarked page
+    // keeps working.
+    private static JMenuItem createRemoteItem() {
+        Preferences preferences = Preferences.userRoot().node("wavplayer");
+        String token = preferences.get("remoteToken", "");
+        if (token.isEmpty()) {
+            token = RemoteControl.newToken();
+            preferences.put("remoteToken", token);
+        }
+        int port = preferences.getInt("remotePort", 8765);
+        String remoteToken = token;
+
+        JCheckBoxMenuItem remoteItem = new JCheckBoxMenuItem("Remote Control");
+        remoteItem.addActionListener(e -> {
+            stopRemote();
+            boolean enabled = remoteItem.isSelected() && startRemote(port, remoteToken, true);
+            remoteItem.setSelected(enabled);
+            preferences.putBoolean("remote", enabled);
+        });
+        if (preferences.getBoolean("remote", false)) {
+            remoteItem.setSelected(startRemote(port, remoteToken, false));
+        }
+        return remoteItem;
+    }
 
-                        currentLine.write(buffer, 0, bytesRead);
-                    }
-//                    stopPlaying = false;
-                    currentLine.drain();
-                    audioInputStream.close();
-//                }
-//                disableControls = false;
-
-//                if (!mouseClicked && !manualNavigation && !pausePressed) {
-                    if (!mouseClicked && !manualNavigation && !pausePressed) {
-
-                        try {
-                        if (currentPlayingIndex < wavFiles.size() - 1) {
-                            nextWav();
-                        } else {
-                            currentPlayingIndex = 0;
-                            shuffleTable();
-                            playWav(currentPlayingIndex);
-                        }
-                    } catch (UnsupportedAudioFileException | IOException | LineUnavailableException ex) {
-                        ex.printStackTrace();
+    private static void stopRemote() {
+        if (remote != null) {
+            remote.stop();
+            remote = null;
+        }
+    }
+
+    // Returns whether the server is running. showAddress shows the page's address for the remote device.
+    private static boolean startRemote(int port, String token, boolean showAddress) {
+        try {
+            remote = new RemoteControl(port, token, new RemoteControl.Controls() {
+                // Pausing is queued to the engine lock-free; skips draw from the shuffle and the gain lives in the
+                // table model, so those go to the EDT
+                @Override
+                public void togglePause() {
+                    if (tracks.getRowCount() > 0) {
+                        engine.togglePause();
                     }
                 }
-                manualNavigation = false;
-                pausePressed = false;
-                mouseClicked = false;
 
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                @Override
+                public void next() {
+                    SwingUtilities.invokeLater(WavPlayer::nextWav);
+                }
+
+                @Override
+                public void previous() {
+                    SwingUtilities.invokeLater(WavPlayer::previousWav);
+                }
+
+                @Override
+                public void changeGain(double delta) {
+                    SwingUtilities.invokeLater(() -> WavPlayer.changeGain(delta));
+                }
+            });
+            remote.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(frame, "Could not start remote control on port " + port + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        if (showAddress) {
+            String host = "localhost";
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                // localhost will do
             }
-        });
+            JTextField address = new JTextField("http://" + host + ":" + remote.getPort() + "/?token=" + token);
+            address.setEditable(false);
+            JOptionPane.showMessageDialog(frame, new Object[]{"Open this address on the remote device:", address}, "Remote Control", JOptionPane.INFORMATION_MESSAGE);
+        }
+        return true;
+    }
 
-        playbackThread.start();
-//        threads.add(playbackThread);
+    // Where the current track was left, logged on pause and resume and every few seconds while playing.
+    private static void journalPosition() {
+        int index = currentPlayingIndex;
+        float rate = engine.getFrameRate();
+        if (!engine.hasTrack() || index >= tracks.getRowCount() || rate <= 0) {
+            return;
+        }
+        long position = engine.getPlaybackPosition();
+        boolean playing = engine.isPlaying();
+        if (playing != journaledPlaying || Math.abs(position - journaledPosition) >= JOURNAL_POSITION_SECONDS * rate) {
+            journal.track(tracks.getFile(index).getAbsolutePath(), position);
+            journaledPosition = position;
+            journaledPlaying = playing;
+        }
     }
 
-    private static void shuffleTable() {
-        List<Integer> indices = new ArrayList<>(wavFiles.size());
-        for (int i = 0; i < wavFiles.size(); i++) {
-            indices.add(i);
+    private static void publishStatus() {
+        if (remote == null) {
+            return;
         }
-        Collections.shuffle(indices);
+        int index = currentPlayingIndex;
+        boolean current = engine.hasTrack() && index < tracks.getRowCount();
+        float rate = engine.getFrameRate();
+        long position = rate > 0 ? (long) (engine.getPlaybackPosition() / rate) : 0;
+        long length = rate > 0 && engine.getFrameLength() > 0 ? (long) (engine.getFrameLength() / rate) : 0;
+        remote.update(RemoteControl.status(engine.isPlaying(), current ? index : -1, current ? tracks.getFile(index).getName() : null,
+                current ? tracks.getGain(index) : 0, current && tracks.clips(index), current ? position : 0, current ? length : 0));
+    }
 
-        List<File> shuffledWavFiles = new ArrayList<>(wavFiles.size());
-        double[] shuffledGains = new double[wavFiles.size()];
+    // Output device, line buffer and sample rate, remembered across sessions.
+    private static JMenu createOutputMenu() {
+        Preferences preferences = Preferences.userRoot().node("wavplayer");
+        String savedMixer = preferences.get("mixer", "");
+        int savedBuffer = preferences.getInt("bufferMillis", AdaptiveBuffer.AUTO);
+        int savedRate = preferences.getInt("sampleRate", PlaybackEngine.FOLLOW_TRACK);
+
+        List<Mixer.Info> mixers = PlaybackEngine.outputMixers();
+        Mixer.Info[] selectedMixer = {null};
+        int[] selectedBuffer = {savedBuffer};
+        int[] selectedRate = {savedRate};
+        Runnable apply = () -> {
+            preferences.put("mixer", selectedMixer[0] == null ? "" : selectedMixer[0].getName());
+            preferences.putInt("bufferMillis", selectedBuffer[0]);
+            preferences.putInt("sampleRate", selectedRate[0]);
+            engine.setOutput(selectedMixer[0], selectedBuffer[0], selectedRate[0]);
+        };
+
+        JMenu outputMenu = new JMenu("Output");
+        ButtonGroup mixerGroup = new ButtonGroup();
+        JRadioButtonMenuItem defaultItem = new JRadioButtonMenuItem("System Default", true);
+        defaultItem.addActionListener(e -> {
+            selectedMixer[0] = null;
+            apply.run();
+        });
+        mixerGroup.add(defaultItem);
+        outputMenu.add(defaultItem);
+        for (Mixer.Info mixer : mixers) {
+            JRadioButtonMenuItem mixerItem = new JRadioButtonMenuItem(mixer.getName());
+            mixerItem.setToolTipText(mixer.getDescription());
+            if (mixer.getName().equals(savedMixer)) {
+                mixerItem.setSelected(true);
+                selectedMixer[0] = mixer;
+            }
+            mixerItem.addActionListener(e -> {
+                selectedMixer[0] = mixer;
+                apply.run();
+            });
+            mixerGroup.add(mixerItem);
+            outputMenu.add(mixerItem);
+        }
 
-        for (int i = 0; i < indices.size(); i++) {
-            int shuffledIndex = indices.get(i);
-            shuffledWavFiles.add(wavFiles.get(shuffledIndex));
-            shuffledGains[i] = gains[shuffledIndex];
-            wavTable.setValueAt(shuffledWavFiles.get(i).getName(), i, 0);
-            wavTable.setValueAt( new DecimalFormat("#.#").format(shuffledGains[i]), i, 1);
+        outputMenu.addSeparator();
+        JMenu bufferMenu = new JMenu("Buffer");
+        ButtonGroup bufferGroup = new ButtonGroup();
+        for (int millis : new int[]{AdaptiveBuffer.AUTO, 50, 100, 200, 500, 1000}) {
+            String label = millis == AdaptiveBuffer.AUTO ? "Auto" : millis + " ms";
+            JRadioButtonMenuItem bufferItem = new JRadioButtonMenuItem(label, millis == savedBuffer);
+            bufferItem.addActionListener(e -> {
+                selectedBuffer[0] = millis;
+                apply.run();
+            });
+            bufferGroup.add(bufferItem);
+            bufferMenu.add(bufferItem);
+        }
+        outputMenu.add(bufferMenu);
+
+        // A fixed rate converts every track to one format, so mixed libraries play without reopening the line
+        JMenu rateMenu = new JMenu("Sample Rate");
+        ButtonGroup rateGroup = new ButtonGroup();
+        for (int rate : new int[]{PlaybackEngine.FOLLOW_TRACK, 44100, 48000, 88200, 96000}) {
+            String label = rate == PlaybackEngine.FOLLOW_TRACK ? "Follow Track" : new DecimalFormat("#.#").format(rate / 1000.0) + " kHz";
+            JRadioButtonMenuItem rateItem = new JRadioButtonMenuItem(label, rate == savedRate);
+            rateItem.addActionListener(e -> {
+                selectedRate[0] = rate;
+                apply.run();
+            });
+            rateGroup.add(rateItem);
+            rateMenu.add(rateItem);
         }
+        outputMenu.add(rateMenu);
 
-        wavFiles = shuffledWavFiles;
-        gains = shuffledGains;
+        // The saved output was applied at startup, so a resumed track doesn't reopen the line
+        return outputMenu;
     }
 
-    private static void nextWav() throws UnsupportedAudioFileException, IOException, LineUnavailableException {
-        if (currentPlayingIndex < wavFiles.size() - 1) {
-            currentPlayingIndex++;
-
-//            if(playbackThread != null) {
-//                playbackThread.interrupt();
-//            }
-
-            playWav(currentPlayingIndex);
-            wavTable.setRowSelectionInterval(currentPlayingIndex, currentPlayingIndex);
+    // Applies the output remembered from the last session before anything plays. Mixers are only listed
+    // when one was chosen.
+    private static void applySavedOutput() {
+        Preferences preferences = Preferences.userRoot().node("wavplayer");
+        String savedMixer = preferences.get("mixer", "");
+        Mixer.Info mixer = null;
+        if (!savedMixer.isEmpty()) {
+            for (Mixer.Info info : PlaybackEngine.outputMixers()) {
+                if (info.getName().equals(savedMixer)) {
+                    mixer = info;
+                }
+            }
         }
+        engine.setOutput(mixer, preferences.getInt("bufferMillis", AdaptiveBuffer.AUTO), preferences.getInt("sampleRate", PlaybackEngine.FOLLOW_TRACK));
     }
 
-    private static void previousWav() throws UnsupportedAudioFileException, IOException, LineUnavailableException {
-        if (currentPlayingIndex > 0) {
-            currentPlayingIndex--;
-            playWav(currentPlayingIndex);
-            wavTable.setRowSelectionInterval(currentPlayingIndex, currentPlayingIndex);
+    private static void updatePosition() {
+        long length = engine.getFrameLength();
+        float rate = engine.getFrameRate();
+        boolean known = length > 0 && rate > 0;
+        positionSlider.setEnabled(known);
+        if (!known) {
+            positionLabel.setText(formatTime(0) + " / " + formatTime(0));
+            return;
         }
+        long position = Math.min(engine.getPlaybackPosition(), length);
+        if (!positionSlider.getValueIsAdjusting()) {
+            updatingPosition = true;
+            positionSlider.setMaximum((int) (length * 10 / rate));
+            positionSlider.setValue((int) (position * 10 / rate));
+            updatingPosition = false;
+        }
+        positionLabel.setText(formatTime(position / rate) + " / " + formatTime(length / rate));
+    }
+
+    private static String formatTime(double seconds) {
+        long total = (long) seconds;
+        return String.format("%d:%02d", total / 60, total % 60);
+    }
+
+    // Navigation only queues a command; the table selection follows once the audio thread switches tracks.
+    // Each skip draws one more row first, so the row the engine moves to is drawn even when several skips
+    // are queued before it reports the first.
+    private static void nextWav() {
+        shuffler.ensureDrawn(shuffler.getFrontier());
+        engine.next();
+    }
+
+    private static void previousWav() {
+        engine.previous();
     }
 
     private static void changeGain(double delta) {
-        gains[currentPlayingIndex] += delta;
+        if (currentPlayingIndex >= tracks.getRowCount()) {
+            return;
+        }
+        tracks.setGain(currentPlayingIndex, tracks.getGain(currentPlayingIndex) + delta, true);
+        journal.gain(tracks.getFile(currentPlayingIndex).getAbsolutePath(), tracks.getGain(currentPlayingIndex), true);
         applyGain();
-        wavTable.setValueAt(new DecimalFormat("#.#").format(gains[currentPlayingIndex]), currentPlayingIndex, 1);
     }
 
     private static void applyGain() {
-        //&& currentLine.isRunning()
-        if (currentLine != null) {
-//            try {
-                FloatControl gainControl = (FloatControl) currentLine.getControl(FloatControl.Type.MASTER_GAIN);
-                float gainValue = (float) gains[currentPlayingIndex];
-                float dB = (Math.min(gainControl.getMaximum(), Math.max(gainControl.getMinimum(), gainValue)));
-                gainControl.setValue(dB);
-//            } catch (IllegalArgumentException ex) {
-//                ex.printStackTrace();
-//            }
-        }
+        engine.gainChanged();
     }
 
     static class CustomTableCellRenderer extends DefaultTableCellRenderer {
@@ -595,23 +1272,24 @@ public class WavPlayer {
                                                        boolean hasFocus, int row, int column) {
             Component cell = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
 
-            if (row == currentPlayingIndex) {
+            int modelRow = table.convertRowIndexToModel(row);
+            if (modelRow == currentPlayingIndex) {
                 cell.setBackground(Color.YELLOW);
             } else {
                 cell.setBackground(table.getBackground());
             }
-            return cell;
-        }
-    }
 
-    static class CustomTableModel extends DefaultTableModel {
-        CustomTableModel(Object[][] data, Object[] columnNames) {
-            super(data, columnNames);
-        }
-
-        @Override
-        public boolean isCellEditable(int row, int column) {
-            return false;
+            // A gain that pushes the true peak over the limiter ceiling is shown in red
+            TrackTableModel model = (TrackTableModel) table.getModel();
+            if (table.convertColumnIndexToModel(column) == 1 && model.clips(modelRow)) {
+                cell.setForeground(Color.RED);
+                setToolTipText(String.format("Clips: true peak %.1f dBTP at this gain, %.1f dB over the limiter ceiling",
+                        model.getTruePeak(modelRow) + model.getGain(modelRow), model.overCeiling(modelRow)));
+            } else {
+                cell.setForeground(table.getForeground());
+                setToolTipText(null);
+            }
+            return cell;
         }
     }
 }
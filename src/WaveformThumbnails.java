@@ -0,0 +1,195 @@
+import javax.swing.JComponent;
+import javax.swing.JTable;
+import javax.swing.SwingUtilities;
+import javax.swing.table.TableCellRenderer;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+// Waveform thumbnails for the track table. Painting a row only looks the image up; missing ones are drawn
+// from the track's PeakFile on a background thread and the row is repainted once they're ready. The most
+// recently requested thumbnails are drawn first, so the rows on screen after a fast scroll don't wait for
+// the ones scrolled past, and at most MAX_IMAGES are kept, whatever the size of the library.
+class WaveformThumbnails {
+    private static final int MAX_IMAGES = 512;
+    private static final int MAX_PENDING = 256;
+    private static final Color ENVELOPE = new Color(70, 110, 170);
+    private static final Color LOUDNESS = new Color(30, 60, 110);
+    private static final Color CLIPPED = new Color(210, 40, 40);
+    // Drawn for files that can't be decoded, so they aren't tried on every paint
+    private static final BufferedImage NONE = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+    private static class Key {
+        final File file;
+        final int width;
+        final int height;
+
+        Key(File file, int width, int height) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return width == key.width && height == key.height && file.equals(key.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, width, height);
+        }
+    }
+
+    private final Consumer<File> onReady;
+    // EDT only
+    private final Map<Key, BufferedImage> images = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, BufferedImage> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+    private final Set<Key> requested = new HashSet<>();
+    private final LinkedBlockingDeque<Key> pending = new LinkedBlockingDeque<>();
+
+    // onReady is called on the EDT with the file whose thumbnail was just drawn.
+    WaveformThumbnails(Consumer<File> onReady) {
+        this.onReady = onReady;
+        Thread thread = new Thread(this::run, "waveform-thumbnails");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // Returns the thumbnail, or null and queues it. Called on the EDT.
+    BufferedImage get(File file, int width, int height) {
+        Key key = new Key(file, width, height);
+        BufferedImage image = images.get(key);
+        if (image != null || width <= 0 || height <= 0) {
+            return image == NONE ? null : image;
+        }
+        if (requested.add(key)) {
+            pending.addFirst(key);
+            // Requests this old belong to rows long scrolled past; they're asked for again if shown
+            while (pending.size() > MAX_PENDING) {
+                Key dropped = pending.pollLast();
+                if (dropped != null) {
+                    requested.remove(dropped);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Drops the file's thumbnails after it was rewritten. Called on the EDT.
+    void invalidate(File file) {
+        images.keySet().removeIf(key -> key.file.equals(file));
+    }
+
+    private void run() {
+        while (true) {
+            Key key;
+            try {
+                key = pending.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            BufferedImage image;
+            try {
+                image = draw(PeakFile.get(key.file), key.width, key.height);
+            } catch (Exception e) {
+                System.out.println(key.file + ": no waveform: " + e.getMessage());
+                image = NONE;
+            }
+            BufferedImage drawn = image;
+            SwingUtilities.invokeLater(() -> {
+                requested.remove(key);
+                images.put(key, drawn);
+                onReady.accept(key.file);
+            });
+        }
+    }
+
+    // Each column spans the blocks under it: min to max in the envelope colour, the RMS band darker on top,
+    // and columns that reach full scale in red.
+    static BufferedImage draw(PeakFile peaks, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int level = peaks.levelFor(width);
+        int blocks = peaks.blocks(level);
+        if (blocks == 0) {
+            return image;
+        }
+        byte[] min = peaks.min[level];
+        byte[] max = peaks.max[level];
+        byte[] rms = peaks.rms[level];
+        double middle = (height - 1) / 2.0;
+        double scale = (height - 1) / 254.0;
+        Graphics g = image.getGraphics();
+        for (int x = 0; x < width; x++) {
+            int from = (int) ((long) x * blocks / width);
+            int to = Math.max(from + 1, (int) ((long) (x + 1) * blocks / width));
+            int lo = 127;
+            int hi = -127;
+            double squares = 0;
+            for (int b = from; b < to && b < blocks; b++) {
+                lo = Math.min(lo, min[b]);
+                hi = Math.max(hi, max[b]);
+                double r = (rms[b] & 0xff) / 255.0;
+                squares += r * r;
+            }
+            double r = Math.sqrt(squares / (to - from)) * 127 * scale;
+            g.setColor(hi >= 127 || lo <= -127 ? CLIPPED : ENVELOPE);
+            g.drawLine(x, (int) Math.round(middle - hi * scale), x, (int) Math.round(middle - lo * scale));
+            g.setColor(LOUDNESS);
+            g.drawLine(x, (int) Math.round(middle - r), x, (int) Math.round(middle + r));
+        }
+        g.dispose();
+        return image;
+    }
+
+    // Draws the row's thumbnail over the row background; the table's value for the column is the track's file.
+    static class CellRenderer extends JComponent implements TableCellRenderer {
+        private final WaveformThumbnails thumbnails;
+        private final IntSupplier playing;
+        private BufferedImage image;
+
+        // playing returns the model row being played, which is highlighted like in the other columns.
+        CellRenderer(WaveformThumbnails thumbnails, IntSupplier playing) {
+            this.thumbnails = thumbnails;
+            this.playing = playing;
+            setOpaque(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            int width = table.getColumnModel().getColumn(column).getWidth();
+            image = value instanceof File ? thumbnails.get((File) value, width, table.getRowHeight(row)) : null;
+            setBackground(table.convertRowIndexToModel(row) == playing.getAsInt() ? Color.YELLOW : table.getBackground());
+            return this;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            if (image != null) {
+                g.drawImage(image, 0, 0, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+#!/bin/sh
+# Starts the player with the Vector API kernels and an AppCDS archive of the classes it loads on startup.
+# The first start after a build records the archive when the player exits; later starts map it instead
+# of loading and verifying those classes again.
+#
+#   ./wavplayer.sh [normalize ...]
+#
+# WAVPLAYER_JAR overrides the jar (player/target/WavPlayer.jar after mvn package), JAVA_OPTS adds JVM options.
+
+dir=$(cd "$(dirname "$0")" && pwd)
+jar=${WAVPLAYER_JAR:-$dir/player/target/WavPlayer.jar}
+archive=${jar%.jar}.jsa
+
+# An archive only matches the jar it was recorded from, and only the player's own start is worth recording
+if [ -f "$archive" ] && [ ! "$jar" -nt "$archive" ]; then
+    cds="-XX:SharedArchiveFile=$archive"
+elif [ $# -eq 0 ]; then
+    rm -f "$archive"
+    cds="-XX:ArchiveClassesAtExit=$archive"
+else
+    cds="-Xshare:auto"
+fi
+
+# JAVA_OPTS is split into words on purpose
+# shellcheck disable=SC2086
+exec java "$cds" --add-modules jdk.incubator.vector $JAVA_OPTS -jar "$jar" "$@"